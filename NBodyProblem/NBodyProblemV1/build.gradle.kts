@@ -1,12 +1,17 @@
 plugins {
     id("java")
     application
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 version = "1.0-SNAPSHOT"
 
+// The vectorized force kernel (--kernel vector) uses the incubating Vector API.
+val vectorModule = listOf("--add-modules", "jdk.incubator.vector")
+
 application {
     mainClass = "Main"
+    applicationDefaultJvmArgs = vectorModule
 }
 
 repositories {
@@ -23,6 +28,21 @@ dependencies {
     testImplementation("org.junit.jupiter:junit-jupiter")
 }
 
+tasks.withType<JavaCompile> {
+    options.compilerArgs.addAll(vectorModule)
+}
+
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+    jvmArgs(vectorModule)
+}
+
+// Benchmarks live in src/jmh/java and are run with "./gradlew jmh", or only some of them with
+// "./gradlew jmh -PjmhIncludes=<regex>". Results are kept in build/results/jmh/results.json to compare runs.
+jmh {
+    jmhVersion = "1.37"
+    jvmArgsAppend.addAll(vectorModule)
+    providers.gradleProperty("jmhIncludes").orNull?.let { includes.add(it) }
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+}
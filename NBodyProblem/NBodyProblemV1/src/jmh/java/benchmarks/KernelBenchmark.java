@@ -0,0 +1,56 @@
+package benchmarks;
+
+import kernels.ScalarKernel;
+import kernels.VectorKernel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Scalar vs Vector API pair kernel over the whole i < j triangle, as done by one worker with the strips method.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KernelBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    private int numBodies;
+
+    private double[] x, y, mass;
+    private double[] fx, fy;
+
+    @Setup(Level.Trial)
+    public void setup () {
+        Random rnd = new Random(1547);
+        x = new double[numBodies];
+        y = new double[numBodies];
+        mass = new double[numBodies];
+        fx = new double[numBodies];
+        fy = new double[numBodies];
+        for(int i = 0; i < numBodies; i++) {
+            x[i] = rnd.nextDouble(50);
+            y[i] = rnd.nextDouble(50);
+            mass[i] = rnd.nextDouble() * 10e8;
+        }
+    }
+
+    @Benchmark
+    public void scalar (Blackhole blackhole) {
+        for(int i = 0; i < numBodies - 1; i++)
+            ScalarKernel.computeForcesOf(i, i + 1, numBodies, x, y, mass, fx, fy);
+        blackhole.consume(fx);
+        blackhole.consume(fy);
+    }
+
+    @Benchmark
+    public void vector (Blackhole blackhole) {
+        for(int i = 0; i < numBodies - 1; i++)
+            VectorKernel.computeForcesOf(i, i + 1, numBodies, x, y, mass, fx, fy);
+        blackhole.consume(fx);
+        blackhole.consume(fy);
+    }
+}
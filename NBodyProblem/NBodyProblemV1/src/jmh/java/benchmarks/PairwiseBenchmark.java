@@ -0,0 +1,88 @@
+package benchmarks;
+
+import kernels.PairwiseForces;
+import kernels.TileSchedule;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import utilities.BodyState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Force phase of one step of V1 with each schedule, through the same PairwiseForces loops as Worker: each worker
+// adds its pairs to its own partial forces, and then the partial forces of its bodies are summed, as Worker does
+// before moving them. The scalar kernel is used; kernels are compared in KernelBenchmark.
+// Threads are created once per trial, so only the step itself is measured.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PairwiseBenchmark {
+
+    @Param({"1000", "10000", "30000"})
+    private int numBodies;
+
+    @Param({"1", "2", "4", "8"})
+    private int numWorkers;
+
+    @Param({"uniform", "clustered"})
+    private String distribution;
+
+    @Param({"strips", "tiles"})
+    private String schedule;
+
+    private BodyState bodies;
+    private TileSchedule tiles;
+    private ExecutorService pool;
+    private List<Callable<Void>> forceTasks, aggregateTasks;
+
+    @Setup(Level.Trial)
+    public void setup () {
+        bodies = new BodyState(numBodies, numWorkers);
+        Distribution.fill(distribution, bodies.x, bodies.y, bodies.mass);
+        tiles = new TileSchedule(numBodies);
+
+        pool = Executors.newFixedThreadPool(numWorkers);
+        forceTasks = new ArrayList<>();
+        aggregateTasks = new ArrayList<>();
+        for(int worker = 0; worker < numWorkers; worker++) {
+            int id = worker;
+            forceTasks.add(() -> {calculateForces(id); return null;});
+            aggregateTasks.add(() -> {aggregateForces(id); return null;});
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown () {
+        pool.shutdown();
+    }
+
+    private void calculateForces (int worker) {
+        if(schedule.equals("tiles"))
+            PairwiseForces.computeTiles(bodies, worker, tiles, false);
+        else
+            PairwiseForces.computeStrips(bodies, worker, numWorkers, false);
+    }
+
+    // Same striding as Worker.moveBodies.
+    private void aggregateForces (int worker) {
+        for(int body = worker; body < numBodies; body += numWorkers)
+            PairwiseForces.aggregateForces(bodies, body);
+    }
+
+    @Benchmark
+    public void forces (Blackhole blackhole) throws InterruptedException {
+        // As Runner does between steps, once no worker is claiming tiles.
+        tiles.reset();
+        pool.invokeAll(forceTasks);
+        pool.invokeAll(aggregateTasks);
+        blackhole.consume(bodies.fx);
+        blackhole.consume(bodies.fy);
+    }
+}
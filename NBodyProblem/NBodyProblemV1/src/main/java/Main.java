@@ -1,4 +1,5 @@
 import utilities.ArgsParser;
+import utilities.Checkpoint;
 
 public class Main {
     public static void main(String[] args) {
@@ -11,9 +12,17 @@ public class Main {
         int start = ArgsParser.getStart();
         int numWorkers = ArgsParser.getNumWorkers();
         boolean report = ArgsParser.getReport();
+        String format = ArgsParser.getFormat();
+        String schedule = ArgsParser.getSchedule();
+        String kernel = ArgsParser.getKernel();
+        String integrator = ArgsParser.getIntegrator();
+        int checkpoint = ArgsParser.getCheckpoint();
+        Checkpoint resume = ArgsParser.getResume();
+        String metrics = ArgsParser.getMetrics();
+        int stream = ArgsParser.getStream();
 
         try {
-            new Runner(numBodies, numSteps, start, DT, numWorkers, report).runProgram();
+            new Runner(numBodies, numSteps, start, DT, numWorkers, report, format, schedule, kernel, integrator, checkpoint, resume, metrics, stream).runProgram();
         } catch (InterruptedException e) {
             System.err.println("ERROR in Runner: " + e.getMessage());
         }
@@ -1,10 +1,23 @@
+import integration.*;
+import kernels.TileSchedule;
+import utilities.BodyState;
+import utilities.Checkpoint;
+import utilities.CheckpointWriter;
 import utilities.Coordinate;
-import utilities.Report;
+import utilities.ColumnarWriter;
+import utilities.Excel;
+import utilities.MetricsWriter;
+import utilities.Phase;
+import utilities.PhaseRecorder;
+import utilities.StepSink;
+import utilities.TrajectoryReader;
+import utilities.TrajectoryWriter;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class Runner {
@@ -25,60 +38,110 @@ public class Runner {
     private static int numSteps;
     private static int numWorkers;
     private static boolean makeReport;
+    private static String format;
+    private static String schedule;
+    private static String kernel;
 
-    // Vector is thread-safe.
-    private static Vector<Double> masses;
-    private static Vector<Coordinate> positions;
-    private static Vector<Coordinate> velocities;
-    private static Vector<Vector<Coordinate>> forces;
+    // Update of velocities and positions, in one or more stages per timestep.
+    private static Integrator integrator;
 
-    // To save the data from each iteration.
-    Vector<Vector<Report>> report;
+    // Only used by the tiles schedule.
+    private static TileSchedule tileSchedule;
 
-    public Runner(int numBodies, int numSteps, int start, int DT, int numWorkers, boolean makeReport) {
+    // Primitive store of masses, positions, velocities and forces.
+    private static BodyState bodies;
+
+    // To save the data from each iteration, streamed to a file. Null unless reports are made.
+    // The columnar results hold every step, so the trajectory is deleted once they are complete.
+    // A resumed run appends its steps to the trajectory of the run it resumes, if it can.
+    private TrajectoryWriter trajectory;
+    private String trajectoryPath = TrajectoryWriter.FILE_PATH;
+    private boolean keepTrajectory = true, appendedTrajectory;
+
+    // State saved every few steps, and the one this run resumes from. Null unless asked for.
+    private CheckpointWriter checkpoints;
+    private final Checkpoint resume;
+
+    // Timers of the phases of every step. The writer is null unless metrics are asked for.
+    private MetricsWriter metrics;
+    private final PhaseRecorder recorder = new PhaseRecorder("Runner");
+
+    // Steps already done by the run that saved the resumed checkpoint.
+    private static int firstStep;
+
+    // Only modified inside the step barrier action.
+    private int currentStep, currentStage;
+    private static boolean saveDue;
+    private double reportTime, runStartTime;
+
+    public Runner(int numBodies, int numSteps, int start, int DT, int numWorkers, boolean makeReport, String format, String schedule, String kernel,
+                  String integrator, int checkpointInterval, Checkpoint resume, String metrics, int streamInterval) {
         Runner.DT = DT;
         Runner.start = start;
         Runner.numBodies = numBodies;
         Runner.numSteps = numSteps;
         Runner.numWorkers = numWorkers;
         Runner.makeReport = makeReport;
+        Runner.format = format;
+        Runner.schedule = schedule;
+        Runner.tileSchedule = schedule.equals("tiles") ? new TileSchedule(numBodies) : null;
+        Runner.kernel = kernel;
+        Runner.integrator = createIntegrator(integrator);
+
+        if(kernel.equals("vector") && !isVectorApiAvailable()) {
+            System.out.println("Vector API not available (run with --add-modules jdk.incubator.vector), using the scalar kernel.");
+            Runner.kernel = "scalar";
+        }
+
+        this.resume = resume;
+        Runner.firstStep = resume != null ? resume.getCompletedSteps() : 0;
+        Runner.saveDue = false;
+        this.currentStep = firstStep;
+        if(checkpointInterval > 0)
+            this.checkpoints = openCheckpoints(checkpointInterval, integrator);
+        if(!metrics.equals("off"))
+            this.metrics = openMetrics(metrics, streamInterval);
+
+        // Initialize bodies (forces start at 0), or take them from the checkpoint.
+        Runner.bodies = new BodyState(numBodies, numWorkers, Runner.integrator.getNumStateArrays());
+        if(resume != null) {
+            resume.restore(bodies);
+            return;
+        }
 
-        // Initialize vectors.
         Random rnd = new Random(SEED);
-        Runner.masses = new Vector<>(numBodies);
-        Runner.positions = new Vector<>(numBodies);
-        Runner.velocities = new Vector<>(numBodies);
         HashSet<Coordinate> pointSet = new HashSet<>();
         for(int i = 0; i < numBodies; i++) {
-            positions.add(obtainValidPosition(pointSet));
-            masses.add((rnd.nextDouble() * MASS_MAGNITUDE) % MASS_MAGNITUDE);
-            velocities.add(new Coordinate(rnd.nextDouble(INITIAL_VELOCITY_LIMIT),
-                                          rnd.nextDouble(INITIAL_VELOCITY_LIMIT)));
-        }
-
-        // Initialize forces matrix.
-        forces = new Vector<>(numWorkers);
-        for(int i = 0; i < numWorkers; i++) {
-            forces.add(new Vector<>(numBodies));
-            for(int j = 0; j < numBodies; j++)
-                forces.get(i).add(new Coordinate(0, 0));
-        }
-
-        if(makeReport) {
-            // Initialize matrix of reports.
-            int totalNumSteps = (numSteps - start) / DT;
-            this.report = new Vector<>(numBodies);
-            for (int i = 0; i < numBodies; i++) {
-                report.add(new Vector<>(totalNumSteps));
-                for (int j = 0; j < totalNumSteps; j++)
-                    report.get(i).add(new Report());
-            }
+            Coordinate position = obtainValidPosition(rnd, pointSet);
+            bodies.x[i] = position.getX();
+            bodies.y[i] = position.getY();
+            bodies.mass[i] = (rnd.nextDouble() * MASS_MAGNITUDE) % MASS_MAGNITUDE;
+            bodies.vx[i] = rnd.nextDouble(INITIAL_VELOCITY_LIMIT);
+            bodies.vy[i] = rnd.nextDouble(INITIAL_VELOCITY_LIMIT);
+        }
+    }
+
+    private static CheckpointWriter openCheckpoints (int interval, String integrator) {
+        try {
+            return new CheckpointWriter(CheckpointWriter.FILE_PATH, interval, numSteps, DT, start, numWorkers, integrator);
+        } catch (IOException e) {
+            System.err.println("ERROR opening checkpoint file: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static MetricsWriter openMetrics (String format, int streamInterval) {
+        try {
+            return new MetricsWriter(format, streamInterval);
+        } catch (IOException e) {
+            System.err.println("ERROR opening metrics file: " + e.getMessage());
+            return null;
         }
     }
 
     // Ensures that newly created coordinates don't occupy the same spot on the grid.
-    private Coordinate obtainValidPosition (HashSet<Coordinate> coordinateSet) {
-        Random rnd = new Random();
+    // Uses the seeded generator so that the same seed always yields the same bodies.
+    private Coordinate obtainValidPosition (Random rnd, HashSet<Coordinate> coordinateSet) {
         Coordinate pos;
         do {pos = new Coordinate(rnd.nextDouble(X_AXIS_MAX - X_AXIS_MIN) + X_AXIS_MIN,
                                  rnd.nextDouble(Y_AXIS_MAX - Y_AXIS_MIN) + Y_AXIS_MIN);}
@@ -87,74 +150,289 @@ public class Runner {
         return pos;
     }
 
-    private void reportPosition (int body, int time) {
-        report.get(body).get(time).setPosition(new Coordinate(positions.get(body)));
+    // Opens the trajectory file for the reports, which already holds the masses of the bodies.
+    // The results file is filled by the writing thread as the steps are written, instead of after the run.
+    // A resumed run appends its steps to the trajectory of the run it resumes, and writes the results of the
+    // whole run from it once it is closed. If that file cannot be appended to, it is left as it is, and the
+    // steps after the checkpoint go to a new trajectory without results.
+    private TrajectoryWriter openTrajectory () {
+        if(resume != null && Files.exists(Path.of(trajectoryPath))) {
+            try {
+                TrajectoryWriter writer = TrajectoryWriter.reopen(trajectoryPath, numBodies, numSteps, DT, start, firstStep);
+                appendedTrajectory = true;
+                keepTrajectory = !format.equals("columnar");
+                return writer;
+            } catch (IOException e) {
+                trajectoryPath = TrajectoryWriter.FILE_PATH.replace(".bin", "-from" + firstStep + ".bin");
+                System.out.println("Cannot append to " + TrajectoryWriter.FILE_PATH + " (" + e.getMessage() + "), the steps after " +
+                                   "the checkpoint are saved to " + trajectoryPath + " without results.");
+                return createTrajectory(bodies.mass, false);
+            }
+        }
+        return createTrajectory(bodies.mass, true);
+    }
+
+    // A resumed run only reports the steps after its checkpoint, so they start later.
+    private TrajectoryWriter createTrajectory (double[] masses, boolean withResults) {
+        TrajectoryWriter writer;
+        int start = Runner.start + firstStep * DT;
+        try {
+            writer = new TrajectoryWriter(trajectoryPath, numBodies, numSteps, DT, start, numWorkers, masses);
+        } catch (IOException e) {
+            System.err.println("ERROR opening trajectory file: " + e.getMessage());
+            return null;
+        }
+        if(!withResults)
+            return writer;
+
+        try {
+            writer.addSink(openResults(start, masses));
+            keepTrajectory = !format.equals("columnar");
+        } catch (IOException e) {
+            System.err.println("ERROR opening results file: " + e.getMessage());
+        }
+        return writer;
+    }
+
+    private static StepSink openResults (int start, double[] masses) throws IOException {
+        if(format.equals("columnar"))
+            return new ColumnarWriter(ColumnarWriter.FILE_PATH, numBodies, numSteps, DT, start, numWorkers, masses);
+        return new Excel(numBodies, numSteps, DT, start, numWorkers, masses);
+    }
+
+    // Writes the results of every step of the trajectory, once it is closed.
+    private boolean saveResults () {
+        try (TrajectoryReader reader = new TrajectoryReader(trajectoryPath)) {
+            double[] masses = new double[numBodies];
+            reader.getMasses().get(masses);
+            reader.replay(openResults(start, masses));
+            return true;
+        } catch (IOException e) {
+            System.err.println("ERROR saving results: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Queues the state of the bodies at this time to be written.
+    // If writing fails, the simulation goes on without reports.
+    private void reportResults () {
+        try {
+            trajectory.writeStep(bodies);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("ERROR saving results: " + e.getMessage());
+            trajectory = null;
+        }
+    }
+
+    // Time spent saving reports is not part of the simulation, and a resumed run adds the time before its checkpoint.
+    private double elapsedTime () {
+        return System.nanoTime() - runStartTime - reportTime + (resume != null ? resume.getExecutionTime() : 0);
+    }
+
+    // Waits for the queued steps, and completes the trajectory and results files. Returns whether they were saved.
+    private boolean closeTrajectory (double executionTime) throws InterruptedException {
+        try {
+            trajectory.close(executionTime);
+        } catch (IOException e) {
+            System.err.println("ERROR saving results: " + e.getMessage());
+            return false;
+        }
+        return !appendedTrajectory || saveResults();
+    }
+
+    // A run that timed out keeps its trajectory, so that it can be resumed.
+    private void deleteTrajectory () {
+        try {
+            Files.deleteIfExists(Path.of(trajectoryPath));
+        } catch (IOException e) {
+            System.err.println("ERROR deleting trajectory file: " + e.getMessage());
+        }
+    }
+
+    // Copies the state at the end of this step, to be written while the workers go on.
+    // If writing fails, the simulation goes on without checkpoints.
+    private void saveCheckpoint (Worker[] workers) {
+        Random[] workerRandoms = new Random[workers.length];
+        for(int i = 0; i < workers.length; i++)
+            workerRandoms[i] = workers[i].getRandom();
+
+        try {
+            checkpoints.saveCheckpoint(currentStep, elapsedTime(), bodies, workerRandoms);
+        } catch (IOException e) {
+            System.err.println("ERROR saving checkpoint: " + e.getMessage());
+            checkpoints = null;
+        }
     }
 
-    private void reportVelocity (int body, int time) {
-        report.get(body).get(time).setVelocity(new Coordinate(velocities.get(body)));
+    // Waits for the checkpoint being written, which is left in place to resume the run.
+    private void closeCheckpoints () {
+        try {
+            int skipped = checkpoints.close();
+            if(skipped > 0)
+                System.out.println(skipped + " checkpoint(s) skipped while the previous one was being written.");
+        } catch (IOException | InterruptedException e) {
+            System.err.println("ERROR saving checkpoint: " + e.getMessage());
+        }
     }
 
-    private void reportForce (int body, int time) {
-        report.get(body).get(time).setForce(new Coordinate(Worker.getAggregatedForces().get(body)));
+    private static List<PhaseRecorder> recordersOf (Worker[] workers) {
+        return Arrays.stream(workers).map(Worker::getRecorder).toList();
     }
 
-    private void reportResults (int time) {
-        for(int body = 0; body < numBodies; body++) {
-            reportPosition(body, time);
-            reportVelocity(body, time);
-            reportForce(body, time);
+    // Appends the timers of the last steps to the metrics stream. If writing fails, the run goes on without metrics.
+    private void streamMetrics (Worker[] workers) {
+        try {
+            metrics.streamInterval(currentStep, recordersOf(workers), recorder);
+        } catch (IOException e) {
+            System.err.println("ERROR saving metrics: " + e.getMessage());
+            metrics = null;
         }
     }
 
-    private void timeout () {
+    private void saveMetrics (Worker[] workers, double executionTime) {
+        try {
+            metrics.write(currentStep - firstStep, executionTime, recordersOf(workers), recorder);
+        } catch (IOException e) {
+            System.err.println("ERROR saving metrics: " + e.getMessage());
+        }
+    }
+
+    // The intervals streamed so far are kept.
+    private void closeMetrics () {
+        try {
+            metrics.close();
+        } catch (IOException e) {
+            System.err.println("ERROR saving metrics: " + e.getMessage());
+        }
+    }
+
+    private static Integrator createIntegrator (String name) {
+        if(name.equals("leapfrog"))
+            return new Leapfrog();
+        else if(name.equals("yoshida4"))
+            return new Yoshida4();
+        else if(name.equals("rk4"))
+            return new RK4();
+        return new Euler();
+    }
+
+    // The vector kernel can only be loaded when the incubator module was added to the JVM.
+    private static boolean isVectorApiAvailable () {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    // Saves the steps reported so far. The worker finishing the current step waits for the lock until the exit.
+    private void timeout () throws InterruptedException {
         System.out.println("TIMEOUT after " + TIMEOUT + " second(s).");
-        System.exit(1);
+        synchronized (this) {
+            if(trajectory != null)
+                closeTrajectory(elapsedTime());
+            if(checkpoints != null) {
+                closeCheckpoints();
+                System.out.println("Resume the run with --resume " + CheckpointWriter.FILE_PATH);
+            }
+            if(metrics != null)
+                closeMetrics();
+            System.exit(1);
+        }
+    }
+
+    // Executed by the last worker reaching the end of a stage, while the rest wait at the barrier.
+    // Once every stage of the step is done, it decides whether the step is saved, which happens when its
+    // velocities are synchronized, with the forces of the next one (see Integrator.synchronize).
+    private void finishStep (Worker[] workers) {
+        if(tileSchedule != null)
+            tileSchedule.reset();
+
+        if(++currentStage < integrator.getNumStages())
+            return;
+        currentStage = 0;
+
+        // A timeout closes the files while holding the lock, so it never sees half a step.
+        synchronized (this) {
+            currentStep++;
+            saveDue = trajectory != null || (checkpoints != null && checkpoints.isDue(currentStep) && currentStep < getTotalNumSteps());
+            if(metrics != null && metrics.isStreamDue(currentStep))
+                streamMetrics(workers);
+        }
+    }
+
+    // Executed by the last worker synchronizing the bodies of a step that is saved, before any of them moves again.
+    private void saveStep (Worker[] workers) {
+        synchronized (this) {
+            double initTime = System.nanoTime();
+            if(trajectory != null) {
+                recorder.mark();
+                reportResults();
+                recorder.lap(Phase.REPORT);
+            }
+            if(checkpoints != null && checkpoints.isDue(currentStep) && currentStep < getTotalNumSteps()) {
+                recorder.mark();
+                saveCheckpoint(workers);
+                recorder.lap(Phase.CHECKPOINT);
+            }
+            reportTime += System.nanoTime() - initTime;
+        }
     }
 
     public void runProgram() throws InterruptedException {
 
-        double executionTime = 0, initTime;
-        int totalNumSteps = (numSteps - start) / DT;
+        double executionTime;
 
-        // Initialize threads
+        // Initialize workers. The first barrier starts the clock once every thread is running, the save barrier
+        // runs saveStep() once the velocities of a saved step are synchronized, and the step barrier closes every
+        // stage and runs finishStep() before releasing them.
         Worker[] workers = new Worker[numWorkers];
-        CyclicBarrier barrier = new CyclicBarrier(numWorkers);
-        for(int i = 0; i < workers.length; i++)
-            workers[i] = new Worker(i, barrier);
+        CyclicBarrier startBarrier = new CyclicBarrier(numWorkers, () -> runStartTime = System.nanoTime());
+        CyclicBarrier forcesBarrier = new CyclicBarrier(numWorkers);
+        CyclicBarrier saveBarrier = new CyclicBarrier(numWorkers, () -> saveStep(workers));
+        CyclicBarrier stepBarrier = new CyclicBarrier(numWorkers, () -> finishStep(workers));
+        for(int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, startBarrier, forcesBarrier, saveBarrier, stepBarrier);
+            if(resume != null)
+                workers[i].setRandom(resume.getRandom(i));
+        }
+        if(makeReport)
+            trajectory = openTrajectory();
 
-        // A new pool is created with each timestep. A thread that has already been executed cannot be reused.
-        ExecutorService threadPool;
+        // Threads are started once and loop over every timestep themselves.
+        Thread[] threads = new Thread[numWorkers];
+        for(int i = 0; i < threads.length; i++)
+            threads[i] = new Thread(workers[i], "Worker-" + i);
 
         // Run program
-        for(int time = 0; time < totalNumSteps; time++) {
+        for (Thread thread : threads)
+            thread.start();
 
-            threadPool = Executors.newFixedThreadPool(numWorkers);
-
-            initTime = System.nanoTime();
-            for (Worker w : workers)
-                threadPool.execute(w);
-            threadPool.shutdown();
-            if(!threadPool.awaitTermination(TIMEOUT, TimeUnit.SECONDS))
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            if(thread.isAlive())
                 timeout();
-            executionTime += System.nanoTime() - initTime;
-
-            if(makeReport)
-                reportResults(time);
         }
 
+        executionTime = elapsedTime();
+        if(checkpoints != null)
+            closeCheckpoints();
+        if(metrics != null)
+            saveMetrics(workers, executionTime);
+
         // Aggregate results
-        System.out.println("Execution time was: " + executionTime/10e9 + " s.");
+        System.out.println("Execution time was: " + executionTime/1e9 + " s.");
 
-        if(makeReport)
-            new utilities.Excel().saveResults(report, numBodies, numSteps, DT, start, executionTime, masses, numWorkers);
+        if(trajectory != null && closeTrajectory(executionTime) && !keepTrajectory)
+            deleteTrajectory();
     }
 
     public static int getDT () {return DT;}
+    public static int getTotalNumSteps () {return (numSteps - start) / DT;}
+    public static int getFirstStep () {return firstStep;}
     public static int getNumWorkers() {return numWorkers;}
     public static int getNumBodies () {return numBodies;}
-    public static Vector<Double> getMasses () {return masses;}
-    public static Vector<Coordinate> getPositions () {return positions;}
-    public static Vector<Coordinate> getVelocities () {return velocities;}
-    public static Vector<Vector<Coordinate>> getForces () {return forces;}
+    public static String getSchedule () {return schedule;}
+    public static TileSchedule getTileSchedule () {return tileSchedule;}
+    public static String getKernel () {return kernel;}
+    public static Integrator getIntegrator () {return integrator;}
+    public static BodyState getBodies () {return bodies;}
+    public static boolean isSaveDue () {return saveDue;}
 }
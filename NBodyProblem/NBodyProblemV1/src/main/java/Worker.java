@@ -1,86 +1,56 @@
 
-import utilities.Coordinate;
+import integration.Integrator;
+import kernels.PairwiseForces;
+import utilities.BodyState;
+import utilities.Phase;
+import utilities.PhaseRecorder;
 
 import java.util.Random;
-import java.util.Vector;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
 
 public class Worker implements Runnable {
 
-    final double G = 6.67e-11;
-
     private final int workerID;
-    private final CyclicBarrier barrier;
-    private static Vector<Coordinate> aggregatedForces;
+    private final CyclicBarrier startBarrier;
+    private final CyclicBarrier forcesBarrier;
+    private final CyclicBarrier saveBarrier;
+    private final CyclicBarrier stepBarrier;
 
-    public Worker(int workerID, CyclicBarrier barrier) {
-        this.workerID = workerID;
-        this.barrier = barrier;
+    // Seeded per worker, so that runs with the same seed and number of workers are reproducible. Saved in checkpoints.
+    private Random rnd;
+    private final boolean vectorKernel;
+
+    // Time and allocations of each phase of the stages, written by MetricsWriter.
+    private final PhaseRecorder recorder;
 
-        Worker.aggregatedForces = new Vector<>(Runner.getNumBodies());
-        for(int i = 0; i < Runner.getNumBodies(); i++)
-            aggregatedForces.add(new Coordinate(0, 0));
+    public Worker(int workerID, CyclicBarrier startBarrier, CyclicBarrier forcesBarrier, CyclicBarrier saveBarrier,
+                  CyclicBarrier stepBarrier) {
+        this.workerID = workerID;
+        this.startBarrier = startBarrier;
+        this.forcesBarrier = forcesBarrier;
+        this.saveBarrier = saveBarrier;
+        this.stepBarrier = stepBarrier;
+        this.rnd = new Random(Runner.SEED + workerID);
+        this.vectorKernel = Runner.getKernel().equals("vector");
+        this.recorder = new PhaseRecorder("Worker-" + workerID);
     }
 
     // Calculate total force for every pair of bodies.
     private void calculateForces () {
-
-        double distance, magnitude;
-        Coordinate direction;
-
-        // Positions are only read.
-        Vector<Coordinate> positions = Runner.getPositions();
-
-        // Forces are read and written into.
-        Vector<Vector<Coordinate>> forces = Runner.getForces();
-
-        // Assign bodies with the strips method.
-        for(int i = workerID; i < Runner.getNumBodies() - 1; i += Runner.getNumWorkers()) {
-            for(int j = i + 1; j < Runner.getNumBodies(); j++) {
-
-                // Compute the distance between the two bodies.
-                double xComponent = positions.get(i).getX() - positions.get(j).getX();
-                double yComponent = positions.get(i).getY() - positions.get(j).getY();
-                distance = Math.sqrt(xComponent * xComponent + yComponent * yComponent);
-
-                // Compute the magnitude of the force between them.
-                magnitude = (G * Runner.getMasses().get(i) * Runner.getMasses().get(j)) / (distance * distance);
-
-                // Compute the direction of the force.
-                direction = new Coordinate(positions.get(j).getX() - positions.get(i).getX(),
-                                           positions.get(j).getY() - positions.get(i).getY());
-
-                // Update the force exerted on each body.
-                double forceX = magnitude * direction.getX() / distance;
-                double forceY = magnitude * direction.getY() / distance;
-                Coordinate force = new Coordinate(forceX, forceY);
-
-                forces.get(workerID).get(i).add(force);
-                forces.get(workerID).get(j).substract(force);
-            }
-        }
+        if(Runner.getSchedule().equals("tiles"))
+            PairwiseForces.computeTiles(Runner.getBodies(), workerID, Runner.getTileSchedule(), vectorKernel);
+        else
+            PairwiseForces.computeStrips(Runner.getBodies(), workerID, Runner.getNumWorkers(), vectorKernel);
     }
 
-    private Coordinate aggregateForces (Vector<Vector<Coordinate>> forces, int body) {
+    // Brings bodies that left the grid back into it.
+    private void keepOnGrid (BodyState bodies, int body) {
 
-        Coordinate force = new Coordinate(0, 0);
-        for (Vector<Coordinate> worker : forces) {
-            force.add(worker.get(body));
-            worker.get(body).set(new Coordinate(0,0));
-        }
-        // To be read later by runner to report it.
-        aggregatedForces.set(body, force);
-        return force;
-    }
-
-    private Coordinate computePosition (Coordinate oldPosition, Coordinate deltaP) {
-
-        Random rnd = new Random();
         double gridWidth = Runner.X_AXIS_MAX - Runner.X_AXIS_MIN;
         double gridHeight = Runner.Y_AXIS_MAX - Runner.Y_AXIS_MIN;
-        double newPositionX = oldPosition.getX() + deltaP.getX();
-        double newPositionY = oldPosition.getY() + deltaP.getY();
+        double newPositionX = bodies.x[body];
+        double newPositionY = bodies.y[body];
 
         // Use random values to ensure that a lot of nodes don't end up in some equal extreme point.
         if(newPositionX > Runner.X_AXIS_MAX)
@@ -92,36 +62,47 @@ public class Worker implements Runnable {
         else if(newPositionY < Runner.Y_AXIS_MIN)
             newPositionY = Runner.Y_AXIS_MIN + rnd.nextDouble(gridHeight) / 10;
 
-        return new Coordinate(newPositionX, newPositionY);
+        bodies.x[body] = newPositionX;
+        bodies.y[body] = newPositionY;
     }
 
-    // Calculates new velocity and position for each body.
-    private void moveBodies() {
-        Coordinate deltaV, deltaP;
+    // Sums the forces on the positions left by the last timestep, and brings the velocities of the worker's bodies
+    // in sync with them. When the step is reported or checkpointed, the runner saves it before any body moves again.
+    private void synchronizeBodies () throws InterruptedException, BrokenBarrierException {
 
-        // Positions and velocities are read and written into.
-        Vector<Coordinate> positions = Runner.getPositions();
-        Vector<Coordinate> velocities = Runner.getVelocities();
-        Vector<Vector<Coordinate>> forces = Runner.getForces();
-        Vector<Double> masses = Runner.getMasses();
+        BodyState bodies = Runner.getBodies();
+        Integrator integrator = Runner.getIntegrator();
         int DT = Runner.getDT();
 
         for(int body = workerID; body < Runner.getNumBodies(); body += Runner.getNumWorkers()) {
+            PairwiseForces.aggregateForces(bodies, body);
+            integrator.synchronize(bodies, body, DT);
+        }
+        recorder.lap(Phase.MOVE);
 
-            // Sum forces and reset them to 0 for the current body
-            Coordinate aggregatedForce = aggregateForces(forces, body);
+        if(Runner.isSaveDue()) {
+            saveBarrier.await();
+            recorder.lap(Phase.STEP_WAIT);
+        }
+    }
+
+    // Calculates new velocity and position for each body with the integrator, from the forces of a stage.
+    // The forces are summed first, unless synchronizeBodies() already did.
+    private void moveBodies (int stage, boolean forcesSummed) {
 
+        // Positions and velocities are read and written into.
+        BodyState bodies = Runner.getBodies();
+        Integrator integrator = Runner.getIntegrator();
+        int DT = Runner.getDT();
 
-            // Compute velocity increase of body i with F = m*(v/DT)
-            deltaV = new Coordinate(aggregatedForce.getX() / masses.get(body) * DT,
-                                    aggregatedForce.getY() / masses.get(body) * DT);
+        for(int body = workerID; body < Runner.getNumBodies(); body += Runner.getNumWorkers()) {
 
-            // Compute position of body i.
-            deltaP = new Coordinate((velocities.get(body).getX() + deltaV.getX() / 2) * DT,
-                                    (velocities.get(body).getY() + deltaV.getY() / 2) * DT);
+            // Sum forces and reset them to 0 for the current body
+            if(!forcesSummed)
+                PairwiseForces.aggregateForces(bodies, body);
 
-            velocities.get(body).add(deltaV);
-            positions.get(body).set(computePosition(positions.get(body), deltaP));
+            integrator.advance(bodies, body, stage, DT);
+            keepOnGrid(bodies, body);
         }
     }
 
@@ -129,17 +110,45 @@ public class Worker implements Runnable {
     public void run () {
 
         try {
-            calculateForces();
-            barrier.await();
-            moveBodies();
-            barrier.await();
+            // The execution time starts once every worker is running.
+            startBarrier.await();
+            recorder.mark();
+
+            // Each stage of the integrator computes the forces on the positions left by the previous one.
+            // Those of the first stage are also the forces on the positions of the previous timestep, which
+            // synchronize its velocities before it is saved.
+            for(int time = Runner.getFirstStep(); time < Runner.getTotalNumSteps(); time++) {
+                for(int stage = 0; stage < Runner.getIntegrator().getNumStages(); stage++) {
+                    calculateForces();
+                    recorder.lap(Phase.FORCES);
+                    forcesBarrier.await();
+                    recorder.lap(Phase.FORCES_WAIT);
+                    boolean synchronize = stage == 0 && time > Runner.getFirstStep();
+                    if(synchronize)
+                        synchronizeBodies();
+                    moveBodies(stage, synchronize);
+                    recorder.lap(Phase.MOVE);
+                    // Runner finishes the stage before any worker starts the next one.
+                    stepBarrier.await();
+                    recorder.lap(Phase.STEP_WAIT);
+                }
+            }
+
+            // Saving the last timestep takes one more force evaluation, to synchronize its velocities.
+            if(Runner.isSaveDue()) {
+                calculateForces();
+                recorder.lap(Phase.FORCES);
+                forcesBarrier.await();
+                recorder.lap(Phase.FORCES_WAIT);
+                synchronizeBodies();
+            }
         }
         catch (InterruptedException | BrokenBarrierException e) {
             System.out.println("ERROR in worker " + workerID + ": " + e.getMessage());
         }
     }
 
-    public static Vector<Coordinate> getAggregatedForces () {
-        return aggregatedForces;
-    }
+    public Random getRandom () {return rnd;}
+    public void setRandom (Random rnd) {this.rnd = rnd;}
+    public PhaseRecorder getRecorder () {return recorder;}
 }
@@ -0,0 +1,34 @@
+package integration;
+
+import utilities.BodyState;
+
+// Update of velocities and positions from the forces of a timestep. Higher-order integrators split a
+// timestep into stages, each with its own force evaluation over the positions left by the previous one.
+public interface Integrator {
+
+    // Force evaluations per timestep.
+    int getNumStages ();
+
+    // Arrays per body kept by the integrator from one stage to the next. They live in the body store,
+    // so they are permuted together with the bodies.
+    default int getNumStateArrays () {return 0;}
+
+    /**
+     * Advances a body once the forces on the current positions are in {@code fx} and {@code fy}.
+     * Only the body's own entries are written, so different bodies may be advanced concurrently.
+     * The new position may fall outside the grid; it is up to the caller to bring it back.
+     * @param bodies    Body store.
+     * @param body      Body to advance.
+     * @param stage     Stage of the timestep the forces belong to.
+     * @param dt        Length of the timestep.
+     */
+    void advance (BodyState bodies, int body, int stage, double dt);
+
+    /**
+     * Brings the velocity of a body in sync with its position at the end of a timestep, once the forces on
+     * that position are in {@code fx} and {@code fy}. Called on every body between two timesteps, before
+     * the first stage of the next one, and after the last timestep; the velocities reported and saved in
+     * checkpoints are the synchronized ones. Integrators that leave them in sync do nothing.
+     */
+    default void synchronize (BodyState bodies, int body, double dt) {}
+}
@@ -0,0 +1,45 @@
+package integration;
+
+import utilities.BodyState;
+
+/*
+ * Composition of kick-drift-kick leapfrog steps: stage s drifts the positions for DRIFT[s] * dt, between
+ * two half kicks of the velocities. The closing kick of a stage and the opening kick of the next one use
+ * the forces on the same positions, so they are applied together after a single force evaluation. The
+ * closing kick of the last stage needs the forces on the positions the timestep leaves, so it is applied
+ * by synchronize() once they are known, with the force evaluation that opens the next timestep (or an
+ * extra one after the last timestep).
+ */
+public abstract class KickDriftKick implements Integrator {
+
+    private final double[] drift;
+
+    protected KickDriftKick (double[] drift) {
+        this.drift = drift;
+    }
+
+    @Override
+    public int getNumStages () {return drift.length;}
+
+    @Override
+    public void advance (BodyState bodies, int body, int stage, double dt) {
+
+        // Closing half kick of the previous drift, except for the last one of a timestep (see synchronize).
+        double kick = drift[stage] / 2;
+        if(stage > 0)
+            kick += drift[stage - 1] / 2;
+
+        bodies.vx[body] += bodies.fx[body] / bodies.mass[body] * kick * dt;
+        bodies.vy[body] += bodies.fy[body] / bodies.mass[body] * kick * dt;
+        bodies.x[body] += bodies.vx[body] * drift[stage] * dt;
+        bodies.y[body] += bodies.vy[body] * drift[stage] * dt;
+    }
+
+    // Closing half kick of the last drift of the timestep.
+    @Override
+    public void synchronize (BodyState bodies, int body, double dt) {
+        double kick = drift[drift.length - 1] / 2;
+        bodies.vx[body] += bodies.fx[body] / bodies.mass[body] * kick * dt;
+        bodies.vy[body] += bodies.fy[body] / bodies.mass[body] * kick * dt;
+    }
+}
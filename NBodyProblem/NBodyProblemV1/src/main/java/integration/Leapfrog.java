@@ -0,0 +1,9 @@
+package integration;
+
+// Leapfrog (velocity Verlet): second order and symplectic, with one force evaluation per timestep.
+public class Leapfrog extends KickDriftKick {
+
+    public Leapfrog () {
+        super(new double[] {1});
+    }
+}
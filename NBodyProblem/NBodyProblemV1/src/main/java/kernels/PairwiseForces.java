@@ -0,0 +1,78 @@
+package kernels;
+
+import utilities.BodyState;
+
+// Force phase of a step, shared by Worker and the JMH benchmarks so that both measure the same loops.
+// Each worker adds the pairs assigned to it into its own partial forces, and the partial forces of a body are
+// summed once every worker is done.
+public class PairwiseForces {
+
+    private PairwiseForces () {}
+
+    /**
+     * Adds the pairs of the rows {@code worker, worker + numWorkers, ...} (strips method) into the worker's
+     * partial forces.
+     */
+    public static void computeStrips (BodyState bodies, int worker, int numWorkers, boolean vectorKernel) {
+
+        // Positions and masses are only read.
+        double[] x = bodies.x, y = bodies.y, mass = bodies.mass;
+        int numBodies = bodies.getNumBodies();
+
+        // This worker's partial forces are read and written into.
+        double[] fx = bodies.workerFx[worker];
+        double[] fy = bodies.workerFy[worker];
+
+        for(int i = worker; i < numBodies - 1; i += numWorkers)
+            computeForcesOf(vectorKernel, i, i + 1, numBodies, x, y, mass, fx, fy);
+    }
+
+    /**
+     * Adds the pairs of every tile the worker claims from the schedule into the worker's partial forces,
+     * until no tile is left. The schedule must be reset before the next step.
+     */
+    public static void computeTiles (BodyState bodies, int worker, TileSchedule tiles, boolean vectorKernel) {
+
+        // Positions and masses are only read.
+        double[] x = bodies.x, y = bodies.y, mass = bodies.mass;
+        int numBodies = bodies.getNumBodies();
+
+        // This worker's partial forces are read and written into.
+        double[] fx = bodies.workerFx[worker];
+        double[] fy = bodies.workerFy[worker];
+
+        for(int tile = tiles.claim(); tile < tiles.getNumTiles(); tile = tiles.claim()) {
+            int rowStart = tiles.getRowBlock(tile);
+            int columnStart = tiles.getColumnBlock(tile);
+            int rowEnd = Math.min(rowStart + TileSchedule.TILE_SIZE, numBodies);
+            int columnEnd = Math.min(columnStart + TileSchedule.TILE_SIZE, numBodies);
+
+            // Tiles on the diagonal only hold the pairs with j > i.
+            for(int i = rowStart; i < rowEnd; i++)
+                computeForcesOf(vectorKernel, i, Math.max(i + 1, columnStart), columnEnd, x, y, mass, fx, fy);
+        }
+    }
+
+    // Sums the partial forces of every worker into the body's force and resets them to 0.
+    public static void aggregateForces (BodyState bodies, int body) {
+
+        double forceX = 0, forceY = 0;
+        for (int worker = 0; worker < bodies.getNumWorkers(); worker++) {
+            forceX += bodies.workerFx[worker][body];
+            forceY += bodies.workerFy[worker][body];
+            bodies.workerFx[worker][body] = 0;
+            bodies.workerFy[worker][body] = 0;
+        }
+        bodies.fx[body] = forceX;
+        bodies.fy[body] = forceY;
+    }
+
+    // Adds the forces between body i and every body in [from, to) with the selected kernel.
+    private static void computeForcesOf (boolean vectorKernel, int i, int from, int to, double[] x, double[] y,
+                                         double[] mass, double[] fx, double[] fy) {
+        if(vectorKernel)
+            VectorKernel.computeForcesOf(i, from, to, x, y, mass, fx, fy);
+        else
+            ScalarKernel.computeForcesOf(i, from, to, x, y, mass, fx, fy);
+    }
+}
@@ -0,0 +1,39 @@
+package kernels;
+
+// Pairwise force kernel of the brute-force engine, written on primitive arrays only.
+public class ScalarKernel {
+
+    public static final double G = 6.67e-11;
+
+    // Adds the forces between body i and every body in [from, to) to the given force buffers.
+    // Only primitive locals are used: nothing is allocated per pair, and the force on body i is
+    // accumulated in the same order as if it were added to fx[i] and fy[i] on every iteration.
+    public static void computeForcesOf (int i, int from, int to, double[] x, double[] y, double[] mass,
+                                        double[] fx, double[] fy) {
+
+        double xi = x[i], yi = y[i], massI = G * mass[i];
+        double forceXi = fx[i], forceYi = fy[i];
+
+        for(int j = from; j < to; j++) {
+
+            // Compute the direction and distance between the two bodies.
+            double directionX = x[j] - xi;
+            double directionY = y[j] - yi;
+            double distance = Math.sqrt(directionX * directionX + directionY * directionY);
+
+            // Compute the magnitude of the force between them.
+            double magnitude = (massI * mass[j]) / (distance * distance);
+
+            // Update the force exerted on each body.
+            double forceX = magnitude * directionX / distance;
+            double forceY = magnitude * directionY / distance;
+            forceXi += forceX;
+            forceYi += forceY;
+            fx[j] -= forceX;
+            fy[j] -= forceY;
+        }
+
+        fx[i] = forceXi;
+        fy[i] = forceYi;
+    }
+}
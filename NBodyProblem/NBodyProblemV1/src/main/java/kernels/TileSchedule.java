@@ -0,0 +1,53 @@
+package kernels;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Splits the i < j triangle of body pairs into square tiles of TILE_SIZE x TILE_SIZE bodies.
+// While a tile is computed, the positions, masses and partial forces of both blocks stay in cache,
+// instead of streaming the whole arrays once per row as the strips method does.
+// Workers claim tiles dynamically, so every worker gets roughly the same number of pairs.
+public class TileSchedule {
+
+    // 2 blocks x 1024 bodies x (x, y, mass, fx, fy) doubles = 80 KB, which fits in L2.
+    public static final int TILE_SIZE = 1024;
+
+    private final int numTiles;
+    private final int[] rowBlock;      // First body of the i block of each tile
+    private final int[] columnBlock;   // First body of the j block of each tile
+    private final AtomicInteger nextTile;
+
+    public TileSchedule (int numBodies) {
+        int numBlocks = (numBodies + TILE_SIZE - 1) / TILE_SIZE;
+        this.numTiles = numBlocks * (numBlocks + 1) / 2;
+        this.rowBlock = new int[numTiles];
+        this.columnBlock = new int[numTiles];
+        this.nextTile = new AtomicInteger(0);
+
+        // Tiles sharing the same j block are consecutive, so that block is reused between claims.
+        int tile = 0;
+        for(int column = 0; column < numBlocks; column++) {
+            for(int row = 0; row <= column; row++) {
+                rowBlock[tile] = row * TILE_SIZE;
+                columnBlock[tile] = column * TILE_SIZE;
+                tile++;
+            }
+        }
+    }
+
+    /**
+     * Claims the next tile to be computed.
+     * @return Index of the tile, or a value {@code >= getNumTiles()} once every tile has been claimed.
+     */
+    public int claim () {
+        return nextTile.getAndIncrement();
+    }
+
+    // Must only be called while no worker is computing forces.
+    public void reset () {
+        nextTile.set(0);
+    }
+
+    public int getNumTiles () {return numTiles;}
+    public int getRowBlock (int tile) {return rowBlock[tile];}
+    public int getColumnBlock (int tile) {return columnBlock[tile];}
+}
@@ -0,0 +1,56 @@
+package kernels;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// SIMD version of ScalarKernel.computeForcesOf, using the incubating Vector API.
+// Needs "--add-modules jdk.incubator.vector" at runtime, otherwise this class cannot even be loaded.
+public class VectorKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * Adds the forces between body i and every body in [from, to) to the given force buffers.
+     * Bodies j are processed {@code SPECIES.length()} at a time; the remaining ones go through the scalar kernel.
+     * Results match the scalar kernel up to rounding, since the force on body i is summed lane by lane.
+     */
+    public static void computeForcesOf (int i, int from, int to, double[] x, double[] y, double[] mass,
+                                        double[] fx, double[] fy) {
+
+        DoubleVector xi = DoubleVector.broadcast(SPECIES, x[i]);
+        DoubleVector yi = DoubleVector.broadcast(SPECIES, y[i]);
+        DoubleVector massI = DoubleVector.broadcast(SPECIES, ScalarKernel.G * mass[i]);
+        DoubleVector forceXi = DoubleVector.zero(SPECIES);
+        DoubleVector forceYi = DoubleVector.zero(SPECIES);
+
+        int j = from;
+        int upperBound = from + SPECIES.loopBound(to - from);
+        for(; j < upperBound; j += SPECIES.length()) {
+
+            // Compute the direction and distance between body i and the bodies of this lane.
+            DoubleVector directionX = DoubleVector.fromArray(SPECIES, x, j).sub(xi);
+            DoubleVector directionY = DoubleVector.fromArray(SPECIES, y, j).sub(yi);
+            DoubleVector squaredDistance = directionX.mul(directionX).add(directionY.mul(directionY));
+            DoubleVector cubedDistance = squaredDistance.mul(squaredDistance.sqrt());
+
+            // Magnitude of the forces divided by the distance, so that a single division is needed per lane.
+            DoubleVector scale = massI.mul(DoubleVector.fromArray(SPECIES, mass, j)).div(cubedDistance);
+
+            // Update the force exerted on each body.
+            DoubleVector forceX = scale.mul(directionX);
+            DoubleVector forceY = scale.mul(directionY);
+            forceXi = forceXi.add(forceX);
+            forceYi = forceYi.add(forceY);
+            DoubleVector.fromArray(SPECIES, fx, j).sub(forceX).intoArray(fx, j);
+            DoubleVector.fromArray(SPECIES, fy, j).sub(forceY).intoArray(fy, j);
+        }
+
+        fx[i] += forceXi.reduceLanes(VectorOperators.ADD);
+        fy[i] += forceYi.reduceLanes(VectorOperators.ADD);
+
+        // Scalar tail.
+        if(j < to)
+            ScalarKernel.computeForcesOf(i, j, to, x, y, mass, fx, fy);
+    }
+}
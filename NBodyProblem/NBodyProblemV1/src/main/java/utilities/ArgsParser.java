@@ -1,5 +1,6 @@
 package utilities;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -12,6 +13,14 @@ public class ArgsParser {
     private static int start;
     private static int numWorkers;
     private static int report;
+    private static String format;
+    private static String schedule;
+    private static String kernel;
+    private static String integrator;
+    private static int checkpoint;
+    private static Checkpoint resume;
+    private static String metrics;
+    private static int stream;
 
     private static final HashSet<String> ALLOWED_PARAMETERS = new HashSet<>(Arrays.asList(
             "bodies",
@@ -19,15 +28,64 @@ public class ArgsParser {
             "timestep",
             "start",
             "workers",
-            "report"
+            "report",
+            "format",
+            "schedule",
+            "kernel",
+            "integrator",
+            "checkpoint",
+            "resume",
+            "metrics",
+            "stream"
+    ));
+
+    // Parameters of the run stored in a checkpoint, which cannot be changed when resuming from it.
+    private static final HashSet<String> CHECKPOINT_PARAMETERS = new HashSet<>(Arrays.asList(
+            "bodies",
+            "steps",
+            "timestep",
+            "start",
+            "workers",
+            "integrator"
+    ));
+
+    private static final HashSet<String> METRICS = new HashSet<>(Arrays.asList(
+            "off",
+            "json",
+            "csv"
+    ));
+
+    private static final HashSet<String> FORMATS = new HashSet<>(Arrays.asList(
+            "xlsx",
+            "columnar"
+    ));
+
+    private static final HashSet<String> SCHEDULES = new HashSet<>(Arrays.asList(
+            "strips",
+            "tiles"
+    ));
+
+    private static final HashSet<String> KERNELS = new HashSet<>(Arrays.asList(
+            "scalar",
+            "vector"
+    ));
+
+    private static final HashSet<String> INTEGRATORS = new HashSet<>(Arrays.asList(
+            "euler",
+            "leapfrog",
+            "yoshida4",
+            "rk4"
     ));
 
 
     private static void usage (String tag) {
         System.out.println(tag);
         System.out.println("Usage: java Main --bodies <number> --steps <number> [options]");
+        System.out.println("       java Main --resume <checkpoint file> [options]");
         System.out.println("Options may be:");
-        System.out.println("--timestep <number>\n--start <number>\n--workers <number>\n--report <0/1>");
+        System.out.println("--timestep <number>\n--start <number>\n--workers <number>\n--report <0/1>\n--format <xlsx/columnar>\n--schedule <strips/tiles>\n--kernel <scalar/vector>\n--integrator <euler/leapfrog/yoshida4/rk4>\n--checkpoint <steps>\n--resume <file>\n--metrics <off/json/csv>\n--stream <steps>");
+        System.out.println("With --format columnar, the results file holds every step and the trajectory file is deleted at the end;\n" +
+                           "a run that times out keeps it, to be resumed.");
         System.exit(1);
     }
 
@@ -48,28 +106,92 @@ public class ArgsParser {
         if(report != 0 && report != 1)
             usage("Parameter \"report\" must be 0 or 1");
 
+        if(!FORMATS.contains(format))
+            usage("Parameter \"format\" must be one of " + FORMATS);
+
         if((numSteps - start) % DT != 0)
             usage("(steps - start) % DT must be 0");
+
+        if(!SCHEDULES.contains(schedule))
+            usage("Parameter \"schedule\" must be one of " + SCHEDULES);
+
+        if(!KERNELS.contains(kernel))
+            usage("Parameter \"kernel\" must be one of " + KERNELS);
+
+        if(!INTEGRATORS.contains(integrator))
+            usage("Parameter \"integrator\" must be one of " + INTEGRATORS);
+
+        if(checkpoint < 0)
+            usage("Parameter \"checkpoint\" must be nonnegative");
+
+        if(!METRICS.contains(metrics))
+            usage("Parameter \"metrics\" must be one of " + METRICS);
+
+        if(stream < 0)
+            usage("Parameter \"stream\" must be nonnegative");
+
+        if(stream > 0 && metrics.equals("off"))
+            usage("Parameter \"stream\" needs \"metrics\" to be json or csv");
+    }
+
+    private static Integer parseInteger (HashMap<String, String> parameters, String key, Integer defaultValue) {
+        if(!parameters.containsKey(key))
+            return defaultValue;
+        try {
+            return Integer.parseInt(parameters.get(key));
+        } catch (NumberFormatException e) {
+            usage("Parameter \"" + key + "\" must be an integer");
+            return null;
+        }
+    }
+
+    // Takes the parameters of the run from the checkpoint to resume.
+    private static void readCheckpoint (HashMap<String, String> parameters) {
+        for(String key : CHECKPOINT_PARAMETERS)
+            if(parameters.containsKey(key))
+                usage("Parameter \"" + key + "\" is taken from the checkpoint when resuming");
+
+        try {
+            resume = Checkpoint.read(parameters.get("resume"));
+        } catch (IOException e) {
+            usage("Cannot resume from \"" + parameters.get("resume") + "\": " + e.getMessage());
+        }
+
+        numBodies = resume.getNumBodies();
+        numSteps = resume.getNumSteps();
+        DT = resume.getDT();
+        start = resume.getStart();
+        numWorkers = resume.getNumWorkers();
+        integrator = resume.getIntegrator();
     }
 
     public static void parseArguments (String[] args) {
 
-        if (args.length < 4 || args.length > ALLOWED_PARAMETERS.size() * 2)
+        if (args.length < 2 || args.length > ALLOWED_PARAMETERS.size() * 2)
             usage("Incorrect argument size (" + args.length + ")");
 
-        HashMap<String, Integer> parameters = new HashMap<>();
+        HashMap<String, String> parameters = new HashMap<>();
         for (int i = 0; i < args.length - 1; i += 2) {
             String key = args[i].substring(2);
             if(!ALLOWED_PARAMETERS.contains(key)) usage("Parameter " + key + " is not valid.");
-            parameters.put(key, Integer.parseInt(args[i + 1]));
+            parameters.put(key, args[i + 1]);
         }
 
-        numBodies = parameters.get("bodies");
-        numSteps = parameters.get("steps");
-        DT = parameters.getOrDefault("timestep", 1);
-        start = parameters.getOrDefault("start", 0);
-        numWorkers = parameters.getOrDefault("workers", 1);
-        report = parameters.getOrDefault("report", 0);
+        numBodies = parseInteger(parameters, "bodies", null);
+        numSteps = parseInteger(parameters, "steps", null);
+        DT = parseInteger(parameters, "timestep", 1);
+        start = parseInteger(parameters, "start", 0);
+        numWorkers = parseInteger(parameters, "workers", 1);
+        report = parseInteger(parameters, "report", 0);
+        format = parameters.getOrDefault("format", "xlsx");
+        schedule = parameters.getOrDefault("schedule", "strips");
+        kernel = parameters.getOrDefault("kernel", "scalar");
+        integrator = parameters.getOrDefault("integrator", "euler");
+        checkpoint = parseInteger(parameters, "checkpoint", 0);
+        metrics = parameters.getOrDefault("metrics", "off");
+        stream = parseInteger(parameters, "stream", 0);
+        if(parameters.containsKey("resume"))
+            readCheckpoint(parameters);
 
         checkErrors();
     }
@@ -80,4 +202,12 @@ public class ArgsParser {
     public static int getStart () {return start;}
     public static int getNumWorkers () {return numWorkers;}
     public static boolean getReport() {return report == 1;}
+    public static String getFormat () {return format;}
+    public static String getSchedule () {return schedule;}
+    public static String getKernel () {return kernel;}
+    public static String getIntegrator () {return integrator;}
+    public static int getCheckpoint () {return checkpoint;}
+    public static Checkpoint getResume () {return resume;}
+    public static String getMetrics () {return metrics;}
+    public static int getStream () {return stream;}
 }
@@ -0,0 +1,47 @@
+package utilities;
+
+// Structure-of-arrays store for every body of the simulation.
+// Each property lives in its own primitive array, so workers read and write plain doubles
+// instead of going through synchronized, boxed Vectors.
+public class BodyState {
+
+    private final int numBodies;
+    private final int numWorkers;
+
+    // Written only during the move phase, read by everyone during the force phase.
+    public final double[] x, y;
+    public final double[] vx, vy;
+    public final double[] mass;
+
+    // Aggregated force of each body in the last step (read by Runner to report it).
+    public final double[] fx, fy;
+
+    // Partial forces computed by each worker, indexed as [worker][body].
+    public final double[][] workerFx, workerFy;
+
+    // Arrays kept per body by the integrator between the stages of a timestep.
+    public final double[][] integratorState;
+
+    public BodyState (int numBodies, int numWorkers) {
+        this(numBodies, numWorkers, 0);
+    }
+
+    public BodyState (int numBodies, int numWorkers, int numStateArrays) {
+        this.numBodies = numBodies;
+        this.numWorkers = numWorkers;
+
+        this.x = new double[numBodies];
+        this.y = new double[numBodies];
+        this.vx = new double[numBodies];
+        this.vy = new double[numBodies];
+        this.mass = new double[numBodies];
+        this.fx = new double[numBodies];
+        this.fy = new double[numBodies];
+        this.workerFx = new double[numWorkers][numBodies];
+        this.workerFy = new double[numWorkers][numBodies];
+        this.integratorState = new double[numStateArrays][numBodies];
+    }
+
+    public int getNumBodies () {return numBodies;}
+    public int getNumWorkers () {return numWorkers;}
+}
@@ -0,0 +1,179 @@
+package utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Saves the state of the simulation every few steps, so that a run can be resumed (see Checkpoint).
+ * The file is little-endian:
+ *   magic (8 bytes), version, numBodies, steps end, DT, start, numWorkers, completed steps,
+ *   number of integrator state arrays (ints), execution time so far in ns (double), and the name of the
+ *   integrator (int length and UTF-8 bytes).
+ *   Then the arrays of the bodies: x, y, vx, vy, mass and the integrator state arrays (doubles).
+ *   The velocities are synchronized with the positions (see Integrator.synchronize) since version 2.
+ *   Last, the random generator of each worker (int length and its serialized bytes).
+ * The snapshot is copied into a buffer inside the step barrier, and a dedicated thread writes it to a
+ * temporary file that replaces the previous checkpoint in a single move, so there is always a complete
+ * checkpoint on disk even if the run dies while writing.
+ */
+public class CheckpointWriter {
+
+    public static final String FILE_PATH = "results/checkpoint1.bin";
+
+    public static final long MAGIC = 0x504B4359444F424EL;     // "NBODYCKP" in little-endian bytes
+    public static final int VERSION = 2;
+    static final int HEADER_SIZE = 48;
+
+    private final Path path, temporaryPath;
+    private final int interval;
+    private final int numSteps, DT, start, numWorkers;
+    private final byte[] integrator;
+
+    // A single buffer goes back and forth: if the previous checkpoint is still being written, the next one is skipped.
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(1);
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(2);
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private final Thread writingThread;
+    private volatile IOException failure;
+    private int skipped;
+
+    /**
+     * @param interval Steps between checkpoints.
+     * @param integrator Name of the integrator, as given to ArgsParser.
+     */
+    public CheckpointWriter (String path, int interval, int numSteps, int DT, int start, int numWorkers,
+                             String integrator) throws IOException {
+        this.path = Path.of(path);
+        this.temporaryPath = Path.of(path + ".tmp");
+        if(this.path.getParent() != null)
+            Files.createDirectories(this.path.getParent());
+
+        this.interval = interval;
+        this.numSteps = numSteps;
+        this.DT = DT;
+        this.start = start;
+        this.numWorkers = numWorkers;
+        this.integrator = integrator.getBytes(StandardCharsets.UTF_8);
+
+        free.add(ByteBuffer.allocate(0));
+
+        // Daemon, so that a run can exit while a checkpoint is written; the last complete one stays in place.
+        this.writingThread = new Thread(this::writeCheckpoints, "Checkpoint-writer");
+        writingThread.setDaemon(true);
+        writingThread.start();
+    }
+
+    // Whether a checkpoint is due after the given number of completed steps.
+    public boolean isDue (int completedSteps) {
+        return completedSteps % interval == 0;
+    }
+
+    // Body of the writing thread.
+    private void writeCheckpoints () {
+        try {
+            for(ByteBuffer buffer = full.take(); buffer != END; buffer = full.take()) {
+                try {
+                    try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE,
+                                                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        while(buffer.hasRemaining())
+                            channel.write(buffer);
+                        channel.force(true);
+                    }
+                    Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                free.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            failure = new IOException("Checkpoint writer interrupted", e);
+        }
+    }
+
+    private static byte[] serialize (Random rnd) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(rnd);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Copies the state of the simulation to be written. Must be called while no worker moves the bodies.
+     * @param completedSteps Steps done so far, from which the run is resumed.
+     * @param executionTime  Execution time of the simulation so far, in ns.
+     * @param workerRandoms  Random generator of each worker.
+     * @return false if the previous checkpoint was still being written, and this one was skipped.
+     */
+    public boolean saveCheckpoint (int completedSteps, double executionTime, BodyState bodies,
+                                   Random[] workerRandoms) throws IOException {
+        if(failure != null)
+            throw failure;
+
+        ByteBuffer buffer = free.poll();
+        if(buffer == null) {
+            skipped++;
+            return false;
+        }
+
+        int numBodies = bodies.getNumBodies();
+        byte[][] randoms = new byte[workerRandoms.length][];
+        long size = HEADER_SIZE + 4 + integrator.length + (long) numBodies * 8 * (5 + bodies.integratorState.length);
+        for(int worker = 0; worker < workerRandoms.length; worker++) {
+            randoms[worker] = serialize(workerRandoms[worker]);
+            size += 4 + randoms[worker].length;
+        }
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Checkpoint of " + size + " bytes does not fit in a buffer");
+        if(buffer.capacity() < size)
+            buffer = ByteBuffer.allocate((int) size);
+        buffer.clear().order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putLong(MAGIC).putInt(VERSION).putInt(numBodies).putInt(numSteps).putInt(DT).putInt(start)
+              .putInt(numWorkers).putInt(completedSteps).putInt(bodies.integratorState.length)
+              .putDouble(executionTime);
+        buffer.putInt(integrator.length).put(integrator);
+
+        // Bulk copies of each array, which is what the workers wait for.
+        for(double[] property : new double[][] {bodies.x, bodies.y, bodies.vx, bodies.vy, bodies.mass})
+            putDoubles(buffer, property);
+        for(double[] property : bodies.integratorState)
+            putDoubles(buffer, property);
+
+        for(byte[] random : randoms)
+            buffer.putInt(random.length).put(random);
+
+        buffer.flip();
+        full.add(buffer);
+        return true;
+    }
+
+    private static void putDoubles (ByteBuffer buffer, double[] property) {
+        buffer.asDoubleBuffer().put(property);
+        buffer.position(buffer.position() + 8 * property.length);
+    }
+
+    /**
+     * Waits for the last checkpoint to be written.
+     * @return Checkpoints skipped because the previous one was still being written.
+     */
+    public int close () throws IOException, InterruptedException {
+        full.put(END);
+        writingThread.join();
+        if(failure != null)
+            throw failure;
+        return skipped;
+    }
+}
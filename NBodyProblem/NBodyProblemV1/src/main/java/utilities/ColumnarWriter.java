@@ -0,0 +1,160 @@
+package utilities;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/*
+ * Writes the results as typed columns, one per field, for analysis tools. The file is little-endian:
+ *   magic (8 bytes), the mass column, then the chunks of steps, and a footer.
+ * A chunk holds the columns x, y, vx, vy, fx, fy of a range of steps, each with the numSteps * numBodies
+ * doubles of its field ordered by step and then by body. Every column is compressed on its own, so a
+ * field can be read without the others: the bytes of its doubles are grouped by significance (first
+ * byte of every value, then the second, ...), which puts the slowly changing sign and exponent bytes
+ * together, and the result is deflated (zlib).
+ * The footer holds the metadata of the run and where each column is:
+ *   version, numBodies, steps end, DT, start, numWorkers, reported steps, number of chunks (ints),
+ *   execution time in ns (double), offset (long) and compressed length (int) of the mass column,
+ *   and for each chunk its first step and number of steps (ints) followed by the offset and length of
+ *   each of its columns.
+ * The file ends with the length of the footer (int) and the magic again, so the footer is found from the end.
+ */
+public class ColumnarWriter implements StepSink {
+
+    public static final String FILE_PATH = "results/results1.ncol";
+
+    public static final long MAGIC = 0x4C4F4359444F424EL;     // "NBODYCOL" in little-endian bytes
+    public static final int VERSION = 1;
+    public static final String[] COLUMNS = {"x", "y", "vx", "vy", "fx", "fy"};
+
+    // Uncompressed bytes of a chunk. Fewer steps per chunk with more bodies, but at least one.
+    private static final int CHUNK_BYTES = 8 << 20;
+
+    private final int numBodies, numSteps, DT, start, numWorkers;
+    private final int stepsPerChunk;
+    private final FileChannel channel;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    // Steps of the current chunk, one array per column.
+    private final double[][] columns;
+    private int stepsInChunk, totalSteps;
+
+    // Bytes of a column before and after compressing it.
+    private byte[] shuffled = new byte[0], compressed = new byte[0];
+
+    private final long massOffset;
+    private final int massLength;
+    private final List<long[]> chunkIndex = new ArrayList<>();
+
+    public ColumnarWriter (String path, int numBodies, int numSteps, int DT, int start, int numWorkers,
+                           double[] masses) throws IOException {
+        this.numBodies = numBodies;
+        this.numSteps = numSteps;
+        this.DT = DT;
+        this.start = start;
+        this.numWorkers = numWorkers;
+        this.stepsPerChunk = Math.max(1, CHUNK_BYTES / (COLUMNS.length * 8 * numBodies));
+        this.columns = new double[COLUMNS.length][stepsPerChunk * numBodies];
+
+        Path file = Path.of(path);
+        if(file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING);
+
+        writeFully(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(MAGIC).flip());
+        massOffset = channel.position();
+        massLength = writeColumn(masses, numBodies);
+    }
+
+    private void writeFully (ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    // Compresses the first count values of a column at the end of the file, and returns its compressed length.
+    private int writeColumn (double[] values, int count) throws IOException {
+        int size = 8 * count;
+        if(shuffled.length < size) {
+            shuffled = new byte[size];
+            compressed = new byte[size + size / 1000 + 64];
+        }
+
+        for(int i = 0; i < count; i++) {
+            long bits = Double.doubleToRawLongBits(values[i]);
+            for(int b = 0; b < 8; b++)
+                shuffled[b * count + i] = (byte) (bits >>> (8 * b));
+        }
+
+        deflater.reset();
+        deflater.setInput(shuffled, 0, size);
+        deflater.finish();
+        int length = 0;
+        while(!deflater.finished()) {
+            if(length == compressed.length)
+                compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        writeFully(ByteBuffer.wrap(compressed, 0, length));
+        return length;
+    }
+
+    // Writes the steps of the current chunk, and records its columns for the footer.
+    private void writeChunk () throws IOException {
+        long[] entry = new long[2 + 2 * COLUMNS.length];
+        entry[0] = totalSteps - stepsInChunk;
+        entry[1] = stepsInChunk;
+        for(int column = 0; column < COLUMNS.length; column++) {
+            entry[2 + 2 * column] = channel.position();
+            entry[3 + 2 * column] = writeColumn(columns[column], stepsInChunk * numBodies);
+        }
+        chunkIndex.add(entry);
+        stepsInChunk = 0;
+    }
+
+    @Override
+    public void writeStep (DoubleBuffer step) throws IOException {
+        int offset = stepsInChunk * numBodies;
+        for(int column = 0; column < COLUMNS.length; column++)
+            step.get(column * numBodies, columns[column], offset, numBodies);
+
+        stepsInChunk++;
+        totalSteps++;
+        if(stepsInChunk == stepsPerChunk)
+            writeChunk();
+    }
+
+    @Override
+    public void close (double executionTime) throws IOException {
+        try {
+            if(stepsInChunk > 0)
+                writeChunk();
+
+            int footerSize = 8 * 4 + 8 + 12 + chunkIndex.size() * (8 + 12 * COLUMNS.length);
+            ByteBuffer footer = ByteBuffer.allocate(footerSize + 12).order(ByteOrder.LITTLE_ENDIAN);
+            footer.putInt(VERSION).putInt(numBodies).putInt(numSteps).putInt(DT).putInt(start).putInt(numWorkers)
+                  .putInt(totalSteps).putInt(chunkIndex.size()).putDouble(executionTime);
+            footer.putLong(massOffset).putInt(massLength);
+            for(long[] entry : chunkIndex) {
+                footer.putInt((int) entry[0]).putInt((int) entry[1]);
+                for(int column = 0; column < COLUMNS.length; column++)
+                    footer.putLong(entry[2 + 2 * column]).putInt((int) entry[3 + 2 * column]);
+            }
+            footer.putInt(footerSize).putLong(MAGIC).flip();
+            writeFully(footer);
+        } finally {
+            deflater.end();
+            channel.close();
+        }
+    }
+}
@@ -1,16 +1,85 @@
 package utilities;
 
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Vector;
+import java.io.OutputStream;
+import java.nio.DoubleBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Writes the results to a workbook one step at a time. The workbook is streamed: only the last rows of
+// each sheet are kept in memory, and the rest are flushed to temporary files until it is saved.
+public class Excel implements StepSink {
+
+    public static final String FILE_PATH = "results/results1.xlsx";
+
+    // Rows of each sheet kept in memory.
+    private static final int ROW_WINDOW = 100;
+
+    // Columns of a sheet in the XLSX format.
+    private static final int MAX_COLUMNS = 16384;
+
+    // A sheet per table, with the x and y columns of each body side by side.
+    private static final String[] TABLES = {"Positions", "Velocities", "Forces"};
+
+    private final SXSSFWorkbook workbook;
+    private final OutputStream output;
+    private final Sheet resultsSheet;
+    private final Sheet[] tableSheets;
+    private final CellStyle headerStyle;
+
+    private final int numBodies, numSteps, DT, start, numWorkers;
+    private final double[] masses;
+    private int totalSteps;
+
+    public Excel (int numBodies, int numSteps, int DT, int start, int numWorkers, double[] masses) throws IOException {
+        if(2 * numBodies + 1 > MAX_COLUMNS)
+            throw new IOException("Too many bodies for a sheet (at most " + (MAX_COLUMNS - 1) / 2 + ")");
+
+        this.numBodies = numBodies;
+        this.numSteps = numSteps;
+        this.DT = DT;
+        this.start = start;
+        this.numWorkers = numWorkers;
+        this.masses = masses.clone();
+
+        // The file is opened first, so that a run that cannot save its results fails before it starts.
+        Path file = Path.of(FILE_PATH);
+        if(file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        this.output = Files.newOutputStream(file);
+
+        this.workbook = new SXSSFWorkbook(ROW_WINDOW);
+        workbook.setCompressTempFiles(true);
+
+        // Creating and formatting cell styles
+        headerStyle = workbook.createCellStyle();
+        Font headerFont = workbook.createFont();
+        headerFont.setBold(true);
+        headerStyle.setFillBackgroundColor(IndexedColors.AQUA.getIndex());
+        headerStyle.setFont(headerFont);
+
+        // Metadata is only known at the end, so its sheet is filled when closing.
+        resultsSheet = workbook.createSheet("Results");
+        tableSheets = new Sheet[TABLES.length];
+        for(int table = 0; table < TABLES.length; table++) {
+            tableSheets[table] = workbook.createSheet(TABLES[table]);
+            writeColumnLabels(tableSheets[table].createRow(0));
+            tableSheets[table].createFreezePane(1, 1);
+        }
+    }
 
-public class Excel {
+    private void writeColumnLabels (Row row) {
+        for (int i = 0; i < numBodies; i++) {
+            row.createCell(2 * i + 1).setCellValue("Body " + (i + 1) + " x");
+            row.createCell(2 * i + 2).setCellValue("Body " + (i + 1) + " y");
+            row.getCell(2 * i + 1).setCellStyle(headerStyle);
+            row.getCell(2 * i + 2).setCellStyle(headerStyle);
+        }
+    }
 
-    private static final String FILE_PATH = "/Users/pablogarcialopez/eclipse-workspace/NBodyProblemV1/results/results1.xlsx";
-    private static final String PRECISION = "%.6g";
     private int writeMetadata(Sheet sheet, int row, String tag, Double data) {
         Row metadataRow = sheet.createRow(row++);
         metadataRow.createCell(0).setCellValue(tag);
@@ -18,103 +87,74 @@ public class Excel {
         return row;
     }
 
-    public void saveResults(Vector<Vector<Report>> report, int numBodies, int numSteps, int DT, int start, double executionTime, Vector<Double> masses, int numWorkers) {
-
-        System.out.println("Saving results...");
+    // Appends a row to each table, with numeric cells.
+    @Override
+    public void writeStep (DoubleBuffer step) {
+        totalSteps++;
+        for(int table = 0; table < TABLES.length; table++) {
+            Row dataRow = tableSheets[table].createRow(totalSteps);
+            dataRow.createCell(0).setCellValue("Time step " + totalSteps);
+
+            int columnX = 2 * table * numBodies, columnY = columnX + numBodies;
+            for (int i = 0; i < numBodies; i++) {
+                dataRow.createCell(2 * i + 1).setCellValue(step.get(columnX + i));
+                dataRow.createCell(2 * i + 2).setCellValue(step.get(columnY + i));
+            }
+        }
+    }
 
-        try (Workbook workbook = new XSSFWorkbook()) {
-            Sheet sheet = workbook.createSheet("Results");
+    @Override
+    public void close (double executionTime) throws IOException {
 
-            // Creating and formatting cell styles
-            CellStyle headerStyle = workbook.createCellStyle();
-            Font headerFont = workbook.createFont();
-            headerFont.setBold(true);
-            headerStyle.setFillBackgroundColor(IndexedColors.AQUA.getIndex());
-            headerStyle.setFont(headerFont);
+        System.out.println("Saving results...");
 
+        try {
             // Writing metadata
             int rowNum = 0;
 
-            rowNum = writeMetadata(sheet, rowNum, "Body number", ((Integer) numBodies).doubleValue());
-            rowNum = writeMetadata(sheet, rowNum, "Steps end", ((Integer) numSteps).doubleValue());
-            rowNum = writeMetadata(sheet, rowNum, "DT", ((Integer) DT).doubleValue());
-            rowNum = writeMetadata(sheet, rowNum, "Start", ((Integer) start).doubleValue());
-            rowNum = writeMetadata(sheet, rowNum, "Total steps", ((Integer) report.get(0).size()).doubleValue());
-            rowNum = writeMetadata(sheet, rowNum, "Number of workers", ((Integer) numWorkers).doubleValue());
-            rowNum = writeMetadata(sheet, rowNum, "Execution time (s)", executionTime/10e9);
+            rowNum = writeMetadata(resultsSheet, rowNum, "Body number", ((Integer) numBodies).doubleValue());
+            rowNum = writeMetadata(resultsSheet, rowNum, "Steps end", ((Integer) numSteps).doubleValue());
+            rowNum = writeMetadata(resultsSheet, rowNum, "DT", ((Integer) DT).doubleValue());
+            rowNum = writeMetadata(resultsSheet, rowNum, "Start", ((Integer) start).doubleValue());
+            rowNum = writeMetadata(resultsSheet, rowNum, "Total steps", ((Integer) totalSteps).doubleValue());
+            rowNum = writeMetadata(resultsSheet, rowNum, "Number of workers", ((Integer) numWorkers).doubleValue());
+            rowNum = writeMetadata(resultsSheet, rowNum, "Execution time (s)", executionTime/1e9);
 
             rowNum++; // Skip a row for spacing
 
             // Display masses:
-            Row columnLabelsRow = sheet.createRow(rowNum++);
+            Row columnLabelsRow = resultsSheet.createRow(rowNum++);
             columnLabelsRow.createCell(0).setCellValue("Masses");
-            for (int i = 0; i < report.size(); i++) {
+            for (int i = 0; i < numBodies; i++) {
                 columnLabelsRow.createCell(i + 1).setCellValue("Body " + (i + 1));
                 columnLabelsRow.getCell(i + 1).setCellStyle(headerStyle);
             }
-            Row massesRow = sheet.createRow(rowNum);
-            for (int i = 0; i < report.size(); i++)
-                massesRow.createCell(i + 1).setCellValue(masses.get(i));
-
-            // Creating tables
-            rowNum++; // Skip a row for spacing
-            rowNum = createTable(sheet, report, rowNum, "Positions", headerStyle);
-            rowNum++;
-            rowNum = createTable(sheet, report, rowNum, "Velocities", headerStyle);
-            rowNum++;
-            createTable(sheet, report, rowNum, "Forces", headerStyle);
-
-            // Auto-sizing columns
-            for (int i = 0; i < report.size() + 5; i++) {
-                sheet.autoSizeColumn(i);
-            }
+            Row massesRow = resultsSheet.createRow(rowNum);
+            for (int i = 0; i < numBodies; i++)
+                massesRow.createCell(i + 1).setCellValue(masses[i]);
 
             // Writing to file
-            try (FileOutputStream fileOut = new FileOutputStream(FILE_PATH)) {
+            try (OutputStream fileOut = output) {
                 workbook.write(fileOut);
                 System.out.println("Done!");
             }
-
-        } catch(IOException e) {
-            System.err.println("ERROR saving results in excel: " + e.getMessage());
+        } finally {
+            // Removes the temporary files of the flushed rows.
+            workbook.dispose();
+            workbook.close();
         }
     }
 
-    private void writeCell (Coordinate coordinate, Cell cell) {
-        double x = coordinate.getX();
-        double y = coordinate.getY();
-        x = Double.parseDouble(String.format(PRECISION, x));
-        y = Double.parseDouble(String.format(PRECISION, y));
-        cell.setCellValue((new Coordinate(x, y)).toString());
-    }
-
-    private int createTable(Sheet sheet, Vector<Vector<Report>> report, int rowNum, String tableName, CellStyle headerStyle) {
-        Row tableHeaderRow = sheet.createRow(rowNum++);
-        tableHeaderRow.createCell(0).setCellValue(tableName);
-        tableHeaderRow.getCell(0).setCellStyle(headerStyle);
+    // Saves the results of a trajectory file written by TrajectoryWriter.
+    public static void saveResults (String trajectoryPath) {
+        try (TrajectoryReader trajectory = new TrajectoryReader(trajectoryPath)) {
+            double[] masses = new double[trajectory.getNumBodies()];
+            trajectory.getMasses().get(masses);
 
-        // Column labels
-        Row columnLabelsRow = sheet.createRow(rowNum++);
-        for (int i = 0; i < report.size(); i++) {
-            columnLabelsRow.createCell(i + 1).setCellValue("Body " + (i + 1));
-            columnLabelsRow.getCell(i + 1).setCellStyle(headerStyle);
-        }
-
-        // Row labels and data
-        for (int j = 0; j < report.get(0).size(); j++) {
-            Row dataRow = sheet.createRow(rowNum++);
-            dataRow.createCell(0).setCellValue("Time step " + (j + 1));
-            for (int i = 0; i < report.size(); i++) {
-                Report reportEntry = report.get(i).get(j);
-                Cell cell = dataRow.createCell(i + 1);
-                switch (tableName) {
-                    case "Positions" -> writeCell(reportEntry.getPosition(), cell);
-                    case "Velocities" -> writeCell(reportEntry.getVelocity(), cell);
-                    case "Forces" -> writeCell(reportEntry.getForce(), cell);
-                }
-            }
+            trajectory.replay(new Excel(trajectory.getNumBodies(), trajectory.getStepsEnd(), trajectory.getDT(),
+                                        trajectory.getStart(), trajectory.getNumWorkers(), masses));
+        } catch(IOException e) {
+            System.err.println("ERROR saving results in excel: " + e.getMessage());
         }
-
-        return rowNum;
     }
 }
@@ -0,0 +1,88 @@
+package utilities;
+
+import java.util.Arrays;
+
+/*
+ * Histogram of durations in ns with a bounded relative error, in the style of HdrHistogram: values below
+ * SUB_BUCKETS have a bucket each, and every power of two above is split into SUB_BUCKETS / 2 buckets,
+ * so a value is known within 1/64 of itself (about 1.6%). Recording is a few shifts and an increment,
+ * and histograms of different threads are merged by adding their counts.
+ * Not thread safe: each thread records into its own histograms.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    // Values are clamped below 2^MAX_BITS ns (about 2.4 hours).
+    private static final int MAX_BITS = 43;
+    private static final int NUM_BUCKETS = SUB_BUCKETS + (MAX_BITS - SUB_BUCKET_BITS) * HALF;
+
+    private final long[] counts = new long[NUM_BUCKETS];
+    private long count, total, min = Long.MAX_VALUE, max;
+
+    private static int bucketOf (long value) {
+        if(value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    // Middle of the values of a bucket.
+    private static long valueOf (int bucket) {
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+        long lowest = (long) ((bucket - SUB_BUCKETS) % HALF + HALF) << shift;
+        return lowest + (1L << shift) / 2;
+    }
+
+    public void record (long value) {
+        value = Math.max(0, Math.min(value, (1L << MAX_BITS) - 1));
+        counts[bucketOf(value)]++;
+        count++;
+        total += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    // Adds the values of another histogram to this one.
+    public void add (LatencyHistogram other) {
+        for(int bucket = 0; bucket < NUM_BUCKETS; bucket++)
+            counts[bucket] += other.counts[bucket];
+        count += other.count;
+        total += other.total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset () {
+        Arrays.fill(counts, 0);
+        count = total = max = 0;
+        min = Long.MAX_VALUE;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return Value below which the given percentage of the recorded values are, or 0 if there are none.
+     */
+    public long getValueAtPercentile (double percentile) {
+        if(count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for(int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if(seen >= rank)
+                return Math.max(min, Math.min(max, valueOf(bucket)));
+        }
+        return max;
+    }
+
+    public long getCount () {return count;}
+    public long getTotal () {return total;}
+    public long getMin () {return count == 0 ? 0 : min;}
+    public long getMax () {return max;}
+    public double getMean () {return count == 0 ? 0 : (double) total / count;}
+}
@@ -0,0 +1,168 @@
+package utilities;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Writes the phase timers of a run as JSON or CSV: for every recorder (each worker, all workers together
+ * and the runner) and phase, the number of laps, their total, mean, min, percentiles and max in ns, and the
+ * bytes allocated. The totals of the run are written at the end to FILE_PATH. When streaming, the laps of
+ * the last interval of steps are also appended to STREAM_PATH every few steps, as CSV rows or as one JSON
+ * object per line.
+ */
+public class MetricsWriter {
+
+    public static final String FILE_PATH = "results/metrics1";
+    public static final String STREAM_PATH = "results/metrics1-steps";
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String CSV_HEADER = "recorder,phase,count,total_ns,mean_ns,min_ns,p50_ns,p90_ns,p99_ns,p999_ns,max_ns,allocated_bytes";
+
+    private final boolean json;
+    private final int streamInterval;
+    private BufferedWriter stream;
+
+    /**
+     * @param format         "json" or "csv".
+     * @param streamInterval Steps between streamed intervals, 0 to only write the totals at the end.
+     */
+    public MetricsWriter (String format, int streamInterval) throws IOException {
+        this.json = format.equals("json");
+        this.streamInterval = streamInterval;
+
+        Path file = Path.of(FILE_PATH);
+        if(file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        if(streamInterval > 0) {
+            stream = Files.newBufferedWriter(Path.of(STREAM_PATH + (json ? ".jsonl" : ".csv")));
+            if(!json) {
+                stream.write("step," + CSV_HEADER);
+                stream.newLine();
+            }
+        }
+    }
+
+    public boolean isStreamDue (int completedSteps) {
+        return stream != null && completedSteps % streamInterval == 0;
+    }
+
+    // Every worker, all of them together, and the runner.
+    private static List<PhaseRecorder> withMerged (List<PhaseRecorder> workers, PhaseRecorder runner) {
+        PhaseRecorder merged = new PhaseRecorder("Workers");
+        for(PhaseRecorder worker : workers)
+            merged.add(worker);
+
+        List<PhaseRecorder> recorders = new ArrayList<>(workers);
+        recorders.add(merged);
+        recorders.add(runner);
+        return recorders;
+    }
+
+    private static void roll (List<PhaseRecorder> workers, PhaseRecorder runner) {
+        for(PhaseRecorder worker : workers)
+            worker.roll();
+        runner.roll();
+    }
+
+    private void appendRecorders (StringBuilder out, String prefix, List<PhaseRecorder> workers, PhaseRecorder runner,
+                                  boolean totals) {
+        if(json)
+            out.append("\"recorders\": [");
+
+        boolean firstRecorder = true;
+        for(PhaseRecorder recorder : withMerged(workers, runner)) {
+            if(json) {
+                out.append(firstRecorder ? "" : ", ").append("{\"name\": \"").append(recorder.getName()).append("\", \"phases\": [");
+                firstRecorder = false;
+            }
+
+            boolean firstPhase = true;
+            for(Phase phase : Phase.values()) {
+                LatencyHistogram laps = totals ? recorder.getTotal(phase) : recorder.getInterval(phase);
+                if(laps.getCount() == 0)
+                    continue;
+                long bytes = totals ? recorder.getTotalAllocated(phase) : recorder.getIntervalAllocated(phase);
+
+                if(json) {
+                    out.append(firstPhase ? "" : ", ");
+                    out.append(String.format(Locale.ROOT, "{\"phase\": \"%s\", \"count\": %d, \"total_ns\": %d, \"mean_ns\": %.1f, \"min_ns\": %d",
+                                             phase.getLabel(), laps.getCount(), laps.getTotal(), laps.getMean(), laps.getMin()));
+                    for(double percentile : PERCENTILES)
+                        out.append(", \"p").append(label(percentile)).append("_ns\": ").append(laps.getValueAtPercentile(percentile));
+                    out.append(", \"max_ns\": ").append(laps.getMax()).append(", \"allocated_bytes\": ").append(bytes).append('}');
+                } else {
+                    out.append(prefix).append(recorder.getName()).append(',').append(phase.getLabel());
+                    out.append(String.format(Locale.ROOT, ",%d,%d,%.1f,%d", laps.getCount(), laps.getTotal(), laps.getMean(), laps.getMin()));
+                    for(double percentile : PERCENTILES)
+                        out.append(',').append(laps.getValueAtPercentile(percentile));
+                    out.append(',').append(laps.getMax()).append(',').append(bytes).append('\n');
+                }
+                firstPhase = false;
+            }
+            if(json)
+                out.append("]}");
+        }
+
+        if(json)
+            out.append(']');
+    }
+
+    // 99.9 is written as 999.
+    private static String label (double percentile) {
+        return percentile == Math.rint(percentile) ? Integer.toString((int) percentile) : Double.toString(percentile).replace(".", "");
+    }
+
+    /**
+     * Appends the laps since the last interval to the stream, and adds them to the totals. Must be called while
+     * no worker records, e.g. in the step barrier. The stream is flushed, so it can be followed while the run goes on.
+     */
+    public void streamInterval (int completedSteps, List<PhaseRecorder> workers, PhaseRecorder runner) throws IOException {
+        StringBuilder out = new StringBuilder();
+        if(json) {
+            out.append("{\"step\": ").append(completedSteps).append(", ");
+            appendRecorders(out, "", workers, runner, false);
+            out.append("}\n");
+        } else
+            appendRecorders(out, completedSteps + ",", workers, runner, false);
+
+        stream.write(out.toString());
+        stream.flush();
+        roll(workers, runner);
+    }
+
+    // Closes the stream without writing the totals, for a run that is stopped while the workers still record.
+    public void close () throws IOException {
+        if(stream != null)
+            stream.close();
+    }
+
+    /**
+     * Writes the totals of the run, once every worker ended.
+     * @param executionTime Execution time of the simulation, in ns.
+     */
+    public void write (int completedSteps, double executionTime, List<PhaseRecorder> workers, PhaseRecorder runner) throws IOException {
+        try {
+            roll(workers, runner);
+
+            StringBuilder out = new StringBuilder();
+            if(json) {
+                out.append(String.format(Locale.ROOT, "{\"steps\": %d, \"workers\": %d, \"execution_time_s\": %.6f, \"allocation_tracked\": %b, ",
+                                         completedSteps, workers.size(), executionTime / 1e9, PhaseRecorder.isAllocationSupported()));
+                appendRecorders(out, "", workers, runner, true);
+                out.append("}\n");
+            } else {
+                out.append(CSV_HEADER).append('\n');
+                appendRecorders(out, "", workers, runner, true);
+            }
+            Files.writeString(Path.of(FILE_PATH + (json ? ".json" : ".csv")), out);
+        } finally {
+            if(stream != null)
+                stream.close();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package utilities;
+
+// Parts of a step timed by PhaseRecorder. Workers go through the first four on every stage, and the
+// runner through the rest inside the barrier that saves a step, while the workers wait in STEP_WAIT.
+public enum Phase {
+    FORCES,             // Partial forces of the worker's pairs of bodies
+    FORCES_WAIT,        // Waiting for the other workers to finish their forces
+    MOVE,               // Adding up the partial forces and moving the worker's bodies
+    STEP_WAIT,          // Waiting for the end of the stage, barrier action included for the last worker to arrive
+    REPORT,             // Queuing the state of the bodies for the trajectory file
+    CHECKPOINT;         // Copying the state of the simulation for the checkpoint
+
+    public String getLabel () {return name().toLowerCase();}
+}
@@ -0,0 +1,20 @@
+package utilities;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+
+// Consumer of the reported steps of a run, fed by the writing thread of TrajectoryWriter while the simulation goes on.
+public interface StepSink {
+
+    /**
+     * Consumes the next step. The buffer is only valid during the call.
+     * @param step Columns x, y, vx, vy, fx, fy of numBodies values each.
+     */
+    void writeStep (DoubleBuffer step) throws IOException;
+
+    /**
+     * Completes the output once every step has been written.
+     * @param executionTime Execution time of the simulation, in ns.
+     */
+    void close (double executionTime) throws IOException;
+}
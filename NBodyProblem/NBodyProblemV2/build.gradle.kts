@@ -1,6 +1,7 @@
 plugins {
     id("java")
     application
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 version = "1.0-SNAPSHOT"
@@ -26,4 +27,13 @@ dependencies {
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+// Benchmarks live in src/jmh/java and are run with "./gradlew jmh", or only some of them with
+// "./gradlew jmh -PjmhIncludes=<regex>". Results are kept in build/results/jmh/results.json to compare runs.
+jmh {
+    jmhVersion = "1.37"
+    providers.gradleProperty("jmhIncludes").orNull?.let { includes.add(it) }
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+}
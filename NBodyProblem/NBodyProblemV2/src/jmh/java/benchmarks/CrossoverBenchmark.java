@@ -0,0 +1,80 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import space.BodyState;
+import space.QuadTree;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Cost of the force phase of one step with Barnes-Hut (tree build included) and with the
+// brute-force pairwise method of V1, on the same bodies. The body count where both lines cross
+// is the smallest problem size for which V2 pays off.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CrossoverBenchmark {
+
+    @Param({"250", "500", "1000", "2000", "5000", "10000", "20000"})
+    private int numBodies;
+
+    private BodyState bodies;
+    private QuadTree quadTree;
+
+    @Setup(Level.Trial)
+    public void setup () {
+        Random rnd = new Random(1547);
+        bodies = new BodyState(numBodies);
+        for(int i = 0; i < numBodies; i++) {
+            bodies.x[i] = rnd.nextDouble(QuadTree.X_AXIS_MAX - QuadTree.X_AXIS_MIN) + QuadTree.X_AXIS_MIN;
+            bodies.y[i] = rnd.nextDouble(QuadTree.Y_AXIS_MAX - QuadTree.Y_AXIS_MIN) + QuadTree.Y_AXIS_MIN;
+            bodies.mass[i] = rnd.nextDouble() * 10e8;
+        }
+        quadTree = new QuadTree(numBodies, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown () {
+        quadTree.close();
+    }
+
+    @Benchmark
+    public void barnesHut (Blackhole blackhole) {
+        quadTree.build(bodies);
+        quadTree.computeMassTree();
+        for(int i = 0; i < numBodies; i++)
+            quadTree.computeForceOn(i);
+        blackhole.consume(bodies.fx);
+    }
+
+    // Same pairwise kernel as the V1 strips method.
+    @Benchmark
+    public void bruteForce (Blackhole blackhole) {
+        double[] x = bodies.x, y = bodies.y, mass = bodies.mass;
+        double[] fx = bodies.fx, fy = bodies.fy;
+        Arrays.fill(fx, 0);
+        Arrays.fill(fy, 0);
+
+        for(int i = 0; i < numBodies - 1; i++) {
+            double xi = x[i], yi = y[i], massI = QuadTree.G * mass[i];
+            for(int j = i + 1; j < numBodies; j++) {
+                double directionX = x[j] - xi;
+                double directionY = y[j] - yi;
+                double distance = Math.sqrt(directionX * directionX + directionY * directionY);
+                double magnitude = (massI * mass[j]) / (distance * distance);
+                double forceX = magnitude * directionX / distance;
+                double forceY = magnitude * directionY / distance;
+                fx[i] += forceX;
+                fy[i] += forceY;
+                fx[j] -= forceX;
+                fy[j] -= forceY;
+            }
+        }
+        blackhole.consume(fx);
+    }
+}
@@ -0,0 +1,40 @@
+package benchmarks;
+
+import space.QuadTree;
+
+import java.util.Random;
+
+// Initial positions and masses of the benchmarked bodies, on the grid of the QuadTree.
+public class Distribution {
+
+    public static final double GRID_SIZE = QuadTree.X_AXIS_MAX - QuadTree.X_AXIS_MIN;
+
+    // Clusters of the clustered distribution, and their spread.
+    private static final int NUM_CLUSTERS = 16;
+    private static final double CLUSTER_RADIUS = 1.0;
+
+    /**
+     * @param distribution "uniform" over the whole grid, like the simulation, or "clustered" around a few
+     *                     random centers, which is what the bodies look like after a while.
+     */
+    public static void fill (String distribution, double[] x, double[] y, double[] mass) {
+        Random rnd = new Random(1547);
+        double[] centerX = new double[NUM_CLUSTERS], centerY = new double[NUM_CLUSTERS];
+        for(int cluster = 0; cluster < NUM_CLUSTERS; cluster++) {
+            centerX[cluster] = rnd.nextDouble(GRID_SIZE);
+            centerY[cluster] = rnd.nextDouble(GRID_SIZE);
+        }
+
+        for(int i = 0; i < x.length; i++) {
+            if(distribution.equals("clustered")) {
+                int cluster = rnd.nextInt(NUM_CLUSTERS);
+                x[i] = Math.min(Math.max(centerX[cluster] + rnd.nextGaussian() * CLUSTER_RADIUS, 0), Math.nextDown(GRID_SIZE));
+                y[i] = Math.min(Math.max(centerY[cluster] + rnd.nextGaussian() * CLUSTER_RADIUS, 0), Math.nextDown(GRID_SIZE));
+            } else {
+                x[i] = rnd.nextDouble(GRID_SIZE);
+                y[i] = rnd.nextDouble(GRID_SIZE);
+            }
+            mass[i] = rnd.nextDouble() * 10e8;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import space.BodyState;
+import space.ForceEngine;
+import space.MultipoleTree;
+import space.QuadTree;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Cost of the force phase of one step (engine update included) with Barnes-Hut and with the fast
+// multipole method. Both engines are set up at a similar accuracy (RMS force error near 5e-6); use
+// the --sweep mode of Main to compare their errors on other settings.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EngineBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    private int numBodies;
+
+    @Param({"bh", "fmm"})
+    private String engine;
+
+    private BodyState bodies;
+    private ForceEngine forceEngine;
+
+    @Setup(Level.Trial)
+    public void setup () {
+        Random rnd = new Random(1547);
+        bodies = new BodyState(numBodies);
+        for(int i = 0; i < numBodies; i++) {
+            bodies.x[i] = rnd.nextDouble(QuadTree.X_AXIS_MAX - QuadTree.X_AXIS_MIN) + QuadTree.X_AXIS_MIN;
+            bodies.y[i] = rnd.nextDouble(QuadTree.Y_AXIS_MAX - QuadTree.Y_AXIS_MIN) + QuadTree.Y_AXIS_MIN;
+            bodies.mass[i] = rnd.nextDouble() * 10e8;
+        }
+
+        if(engine.equals("fmm"))
+            forceEngine = new MultipoleTree(numBodies, 1, 32, 0.9, MultipoleTree.DEFAULT_ORDER, 0);
+        else
+            forceEngine = new QuadTree(numBodies, 1, QuadTree.DEFAULT_LEAF_CAPACITY, QuadTree.DEFAULT_THETA, false, false, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown () {
+        forceEngine.close();
+    }
+
+    @Benchmark
+    public void step (Blackhole blackhole) {
+        forceEngine.update(bodies);
+        for(int i = 0; i < numBodies; i++)
+            forceEngine.computeForceOn(i);
+        blackhole.consume(bodies.fx);
+    }
+}
@@ -0,0 +1,85 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import space.BodyState;
+import space.QuadTree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// The three phases of a Barnes-Hut step on their own: building the tree (Morton sort included), aggregating
+// the masses of its cells, and computing the force on every body, split in contiguous ranges between the
+// workers. The tree's pool uses the same number of workers. Bodies keep the order of the previous build,
+// as they do between the steps of a run.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TreeBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    private int numBodies;
+
+    @Param({"1", "4"})
+    private int numWorkers;
+
+    @Param({"uniform", "clustered"})
+    private String distribution;
+
+    private BodyState bodies;
+    private QuadTree quadTree;
+    private ExecutorService pool;
+    private List<Callable<Void>> forceTasks;
+
+    @Setup(Level.Trial)
+    public void setup () {
+        bodies = new BodyState(numBodies);
+        Distribution.fill(distribution, bodies.x, bodies.y, bodies.mass);
+        quadTree = new QuadTree(numBodies, numWorkers);
+        quadTree.build(bodies);
+        quadTree.computeMassTree();
+
+        pool = Executors.newFixedThreadPool(numWorkers);
+        forceTasks = new ArrayList<>();
+        for(int worker = 0; worker < numWorkers; worker++) {
+            int first = (int) ((long) worker * numBodies / numWorkers);
+            int last = (int) ((long) (worker + 1) * numBodies / numWorkers);
+            forceTasks.add(() -> {
+                for(int body = first; body < last; body++)
+                    quadTree.computeForceOn(body);
+                return null;
+            });
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown () {
+        pool.shutdown();
+        quadTree.close();
+    }
+
+    @Benchmark
+    public void build (Blackhole blackhole) {
+        quadTree.build(bodies);
+        blackhole.consume(quadTree.size());
+    }
+
+    @Benchmark
+    public void computeMassTree () {
+        quadTree.computeMassTree();
+    }
+
+    @Benchmark
+    public void computeForceOn (Blackhole blackhole) throws InterruptedException {
+        pool.invokeAll(forceTasks);
+        blackhole.consume(bodies.fx);
+        blackhole.consume(bodies.fy);
+    }
+}
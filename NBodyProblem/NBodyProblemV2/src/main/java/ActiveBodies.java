@@ -0,0 +1,77 @@
+import integration.Integrator;
+import space.BodyState;
+
+import java.util.Arrays;
+
+// Bodies whose force is computed on the current stage, kept from one stage to the next without going over
+// every body. Bodies are listed by stride (see Integrator.getStride), so the active bodies of any stage are
+// a prefix of the list: those whose stride divides the stage. A body only changes stride when it is advanced,
+// i.e. while it is in the prefix, and only to one that divides that stage, so it stays in the prefix: the next
+// stage only sorts the prefix again. The active bodies are then listed by index, the Morton order of the last
+// full update, so that a worker's share of them stays close in space and in memory.
+public class ActiveBodies {
+
+    private final int[] bodies, sorted;
+
+    // levelEnd[k] is the number of bodies with a stride up to 2^k, which come first in the list.
+    private final int[] levelEnd, levelCount;
+    private final int numLevels;
+
+    // Levels of the bodies in the prefix, and whether the prefix is every body in the order of the store.
+    private int activeLevels;
+    private int numActive;
+    private boolean everyBody;
+
+    /**
+     * @param numBodies Number of bodies of the simulation.
+     * @param numStages Stages per timestep, the longest possible stride.
+     */
+    public ActiveBodies (int numBodies, int numStages) {
+        this.bodies = new int[numBodies];
+        this.sorted = new int[numBodies];
+        this.numLevels = 32 - Integer.numberOfLeadingZeros(numStages);
+        this.levelEnd = new int[numLevels];
+        this.levelCount = new int[numLevels + 1];
+    }
+
+    // Lists every body in the order of the store, after an update of the force engine that may have permuted them.
+    public void listAll () {
+        for(int k = 0; k < bodies.length; k++)
+            bodies[k] = k;
+        numActive = bodies.length;
+        activeLevels = numLevels;
+        everyBody = true;
+    }
+
+    /**
+     * Lists the active bodies of a stage, once those of the previous stage were advanced and took their new
+     * strides. Only the previous active bodies are sorted, by a stable counting sort of their strides.
+     * @param stage Stage whose active bodies are listed, after the first one of the timestep.
+     */
+    public void listNext (Integrator integrator, BodyState store, double dt, int stage) {
+        Arrays.fill(levelCount, 0);
+        for(int k = 0; k < numActive; k++)
+            levelCount[Integer.numberOfTrailingZeros(integrator.getStride(store, bodies[k], dt)) + 1]++;
+        for(int level = 1; level <= activeLevels; level++)
+            levelCount[level] += levelCount[level - 1];
+        for(int k = 0; k < numActive; k++)
+            sorted[levelCount[Integer.numberOfTrailingZeros(integrator.getStride(store, bodies[k], dt))]++] = bodies[k];
+        System.arraycopy(sorted, 0, bodies, 0, numActive);
+
+        // After the scatter, levelCount[k] is where the bodies of level k end.
+        for(int level = 0; level < activeLevels; level++)
+            levelEnd[level] = levelCount[level];
+
+        activeLevels = Math.min(Integer.numberOfTrailingZeros(stage), numLevels - 1) + 1;
+        numActive = levelEnd[activeLevels - 1];
+        everyBody = false;
+
+        // Only which bodies are in the prefix matters to the next stage, not their order.
+        Arrays.sort(bodies, 0, numActive);
+    }
+
+    public int[] getBodies () {return bodies;}
+    public int get (int k) {return bodies[k];}
+    public int size () {return numActive;}
+    public boolean isEveryBody () {return everyBody;}
+}
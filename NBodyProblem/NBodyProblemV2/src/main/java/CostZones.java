@@ -0,0 +1,118 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Splits the force phase of a step into chunks of consecutive bodies with about the same cost.
+// Bodies are in Morton order, so each chunk is a compact zone of space ("costzones"), and the cost
+// of a body is the number of interactions it took in the previous step, which barely changes
+// between steps. Each worker owns a run of consecutive chunks and takes them from the front;
+// a worker that runs out of chunks steals from the back of another worker's run.
+public class CostZones {
+
+    public static final int NONE = -1;
+
+    // Chunks per worker when balancing: enough to even out the cost estimate errors by stealing,
+    // few enough to keep whole subtrees of the tree in a chunk.
+    public static final int CHUNKS_PER_WORKER = 8;
+
+    private final int numWorkers;
+    private final int chunksPerWorker;
+    private final boolean balanced;
+
+    // Chunk k holds the active bodies [chunkStart[k], chunkStart[k + 1]).
+    private final int[] chunkStart;
+
+    // Remaining chunks of each worker, packed as (front << 32) | back, with back exclusive.
+    private final AtomicLongArray zones;
+
+    /**
+     * @param numWorkers Number of workers sharing the force phase.
+     * @param balanced   Whether chunks are split by cost and stolen between workers. Otherwise each
+     *                   worker gets a single chunk with the same number of bodies, as a reference.
+     */
+    public CostZones (int numWorkers, boolean balanced) {
+        this.numWorkers = numWorkers;
+        this.balanced = balanced;
+        this.chunksPerWorker = balanced ? CHUNKS_PER_WORKER : 1;
+        this.chunkStart = new int[numWorkers * chunksPerWorker + 1];
+        this.zones = new AtomicLongArray(numWorkers);
+    }
+
+    // Cost of a body. Every body counts at least once, so the first step, with no counts yet, is split evenly.
+    private long cost (int[] interactions, int body) {
+        return balanced ? interactions[body] + 1 : 1;
+    }
+
+    /**
+     * Splits the bodies that need their force into chunks for the next force phase and gives every worker
+     * its chunks back. Chunks are ranges of positions in the list of active bodies.
+     * Called by a single thread between stages, after the force engine has been updated.
+     * @param interactions Interactions of each body in its last force evaluation, in the current order of the bodies.
+     * @param active       Bodies that need their force, in the current order.
+     * @param numActive    Number of bodies in active.
+     */
+    public void partition (int[] interactions, int[] active, int numActive) {
+        int numChunks = chunkStart.length - 1;
+
+        long total = 0;
+        for(int k = 0; k < numActive; k++)
+            total += cost(interactions, active[k]);
+
+        // Chunk c ends where the prefix sum of the costs reaches (c + 1) / numChunks of the total.
+        int k = 0;
+        long accumulated = 0;
+        for(int chunk = 1; chunk < numChunks; chunk++) {
+            long target = total * chunk / numChunks;
+            while(k < numActive && accumulated + cost(interactions, active[k]) <= target)
+                accumulated += cost(interactions, active[k++]);
+            chunkStart[chunk] = k;
+        }
+        chunkStart[0] = 0;
+        chunkStart[numChunks] = numActive;
+
+        for(int worker = 0; worker < numWorkers; worker++)
+            zones.set(worker, pack(worker * chunksPerWorker, (worker + 1) * chunksPerWorker));
+    }
+
+    /**
+     * Next chunk for a worker: the first one left of its own, or else the last one left of another worker.
+     * @return The chunk, or NONE when every chunk of the step has been taken.
+     */
+    public int nextChunk (int worker) {
+        int chunk = takeFront(worker);
+        if(chunk != NONE || !balanced)
+            return chunk;
+
+        for(int k = 1; k < numWorkers && chunk == NONE; k++)
+            chunk = takeBack((worker + k) % numWorkers);
+        return chunk;
+    }
+
+    private int takeFront (int worker) {
+        while(true) {
+            long zone = zones.get(worker);
+            int front = (int) (zone >>> 32), back = (int) zone;
+            if(front >= back)
+                return NONE;
+            if(zones.compareAndSet(worker, zone, pack(front + 1, back)))
+                return front;
+        }
+    }
+
+    private int takeBack (int worker) {
+        while(true) {
+            long zone = zones.get(worker);
+            int front = (int) (zone >>> 32), back = (int) zone;
+            if(front >= back)
+                return NONE;
+            if(zones.compareAndSet(worker, zone, pack(front, back - 1)))
+                return back - 1;
+        }
+    }
+
+    private static long pack (int front, int back) {
+        return ((long) front << 32) | back;
+    }
+
+    public int getChunkStart (int chunk) {return chunkStart[chunk];}
+    public int getChunkEnd (int chunk) {return chunkStart[chunk + 1];}
+    public int getOwner (int chunk) {return chunk / chunksPerWorker;}
+}
@@ -1,4 +1,5 @@
 import utilities.ArgsParser;
+import utilities.Checkpoint;
 
 public class Main {
     public static void main(String[] args) {
@@ -11,9 +12,28 @@ public class Main {
         int start = ArgsParser.getStart();
         int numWorkers = ArgsParser.getNumWorkers();
         boolean report = ArgsParser.getReport();
+        String format = ArgsParser.getFormat();
+        int leafCapacity = ArgsParser.getLeafCapacity();
+        double theta = ArgsParser.getTheta();
+        double[] sweep = ArgsParser.getSweep();
+        String engine = ArgsParser.getEngine();
+        int order = ArgsParser.getOrder();
+        boolean quadrupole = ArgsParser.getQuadrupole();
+        String traversal = ArgsParser.getTraversal();
+        double incremental = ArgsParser.getIncremental();
+        String balance = ArgsParser.getBalance();
+        String integrator = ArgsParser.getIntegrator();
+        int levels = ArgsParser.getLevels();
+        int checkpoint = ArgsParser.getCheckpoint();
+        Checkpoint resume = ArgsParser.getResume();
+        String metrics = ArgsParser.getMetrics();
+        int stream = ArgsParser.getStream();
 
         try {
-            new Runner(numBodies, numSteps, start, DT, numWorkers, report).runProgram();
+            if(sweep != null)
+                new ThetaSweep(numBodies, numSteps, start, DT, numWorkers, leafCapacity, engine, order, quadrupole, traversal, incremental, balance, integrator, levels, sweep).runSweep();
+            else
+                new Runner(numBodies, numSteps, start, DT, numWorkers, report, format, leafCapacity, theta, engine, order, quadrupole, traversal, incremental, balance, integrator, levels, checkpoint, resume, metrics, stream).runProgram();
         } catch (InterruptedException e) {
             System.err.println("ERROR in Runner: " + e.getMessage());
         }
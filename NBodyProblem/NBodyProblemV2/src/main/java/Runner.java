@@ -1,14 +1,28 @@
+import integration.*;
+import space.BodyState;
+import space.ForceEngine;
+import space.MultipoleTree;
 import space.QuadTree;
 import space.Coordinate;
+import utilities.Checkpoint;
+import utilities.CheckpointWriter;
+import utilities.ColumnarWriter;
 import utilities.Excel;
-import utilities.Report;
+import utilities.MetricsWriter;
+import utilities.Phase;
+import utilities.PhaseRecorder;
+import utilities.StepSink;
+import utilities.TrajectoryReader;
+import utilities.TrajectoryWriter;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Vector;
 import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class Runner {
@@ -18,6 +32,9 @@ public class Runner {
     private final static Double MASS_MAGNITUDE = 10e8;
     private final static Double INITIAL_VELOCITY_LIMIT = 1.5;
 
+    // Fraction of active bodies above which a stage of individual timesteps updates the engine as a whole.
+    private final static double FULL_UPDATE_FRACTION = 0.5;
+
     // General application parameters.
     private static int DT;
     private static int start;
@@ -25,60 +42,140 @@ public class Runner {
     private static int numSteps;
     private static int numWorkers;
     private static boolean makeReport;
+    private static String format;
+
+    // Update of velocities and positions, in one or more stages per timestep.
+    private static Integrator integrator;
+
+    // Primitive store of masses, positions, velocities and forces.
+    private static BodyState bodies;
+
+    // Barnes-Hut tree or fast multipole method over the current positions.
+    private final ForceEngine forceEngine;
+
+    // Chunks of bodies of the force phase, split by the cost of the previous step.
+    private final CostZones costZones;
+
+    // Bodies whose force is computed on the current stage, in the current order of the bodies.
+    private static ActiveBodies active;
+
+    // To save the data from each iteration, streamed to a file. Null unless reports are made.
+    // The columnar results hold every step, so the trajectory is deleted once they are complete.
+    // A resumed run appends its steps to the trajectory of the run it resumes, if it can.
+    private TrajectoryWriter trajectory;
+    private String trajectoryPath = TrajectoryWriter.FILE_PATH;
+    private boolean keepTrajectory = true, appendedTrajectory;
 
-    // Vector is thread-safe.
-    private static Vector<Double> masses;
-    private static Vector<Coordinate> positions;
-    private static Vector<Coordinate> velocities;
-    private static Vector<Vector<Coordinate>> forces;
+    // State saved every few steps, and the one this run resumes from. Null unless asked for.
+    private CheckpointWriter checkpoints;
+    private final Checkpoint resume;
 
-    // To save the data from each iteration.
-    Vector<Vector<Report>> report;
+    // Timers of the phases of every step. The writer is null unless metrics are asked for.
+    private MetricsWriter metrics;
+    private final PhaseRecorder recorder = new PhaseRecorder("Runner");
 
-    public Runner(int numBodies, int numSteps, int start, int DT, int numWorkers, boolean makeReport) {
+    // The load balance of the workers is printed together with the metrics.
+    private final boolean printBalance;
+
+    // Steps already done by the run that saved the resumed checkpoint.
+    private static int firstStep;
+
+    // Only modified inside the step barrier action.
+    private int currentStep, currentStage;
+    private static boolean saveDue;
+    private double reportTime;
+    private double executionTime, runStartTime;
+
+    // Forces of the initial positions computed by direct summation, indexed by body, to measure
+    // the error of the tree in the first step. Null unless a sweep asks for it.
+    private double[] referenceFx, referenceFy;
+    private double rmsForceError, maxForceError;
+
+    // Whether the run prints nothing but errors, for the runs of a sweep.
+    private boolean quiet;
+
+    public Runner(int numBodies, int numSteps, int start, int DT, int numWorkers, boolean makeReport, String format,
+                  int leafCapacity, double theta, String engine, int order, boolean quadrupole, String traversal,
+                  double incremental, String balance, String integrator, int levels, int checkpointInterval,
+                  Checkpoint resume, String metrics, int streamInterval) {
         Runner.DT = DT;
         Runner.start = start;
         Runner.numBodies = numBodies;
         Runner.numSteps = numSteps;
         Runner.numWorkers = numWorkers;
         Runner.makeReport = makeReport;
+        Runner.format = format;
+        Runner.integrator = createIntegrator(integrator, levels);
+
+        if(engine.equals("fmm"))
+            this.forceEngine = new MultipoleTree(numBodies, numWorkers, leafCapacity, theta, order, incremental);
+        else
+            this.forceEngine = new QuadTree(numBodies, numWorkers, leafCapacity, theta, quadrupole, traversal.equals("group"), incremental);
+        this.costZones = new CostZones(numWorkers, balance.equals("costzones"));
+        this.resume = resume;
+        Runner.firstStep = resume != null ? resume.getCompletedSteps() : 0;
+        Runner.saveDue = false;
+        this.currentStep = firstStep;
+        if(checkpointInterval > 0)
+            this.checkpoints = openCheckpoints(checkpointInterval, integrator, levels);
+        if(!metrics.equals("off"))
+            this.metrics = openMetrics(metrics, streamInterval);
+        this.printBalance = !metrics.equals("off");
+
+        // Initialize bodies (forces start at 0), or take them from the checkpoint.
+        Runner.bodies = new BodyState(numBodies, Runner.integrator.getNumStateArrays());
+        Runner.active = new ActiveBodies(numBodies, Runner.integrator.getNumStages());
+        if(resume != null) {
+            resume.restore(bodies);
+            return;
+        }
 
-        // Initialize vectors.
         Random rnd = new Random(SEED);
-        Runner.masses = new Vector<>();
-        Runner.positions = new Vector<>();
-        Runner.velocities = new Vector<>();
         HashSet<Coordinate> coordinateSet = new HashSet<>();
         for(int i = 0; i < numBodies; i++) {
-            positions.add(obtainValidPosition(coordinateSet));
-            masses.add((rnd.nextDouble() * MASS_MAGNITUDE) % MASS_MAGNITUDE);
-            velocities.add(new Coordinate(rnd.nextDouble(INITIAL_VELOCITY_LIMIT),
-                                          rnd.nextDouble(INITIAL_VELOCITY_LIMIT)));
+            Coordinate position = obtainValidPosition(rnd, coordinateSet);
+            bodies.x[i] = position.getX();
+            bodies.y[i] = position.getY();
+            bodies.mass[i] = (rnd.nextDouble() * MASS_MAGNITUDE) % MASS_MAGNITUDE;
+            bodies.vx[i] = rnd.nextDouble(INITIAL_VELOCITY_LIMIT);
+            bodies.vy[i] = rnd.nextDouble(INITIAL_VELOCITY_LIMIT);
         }
+    }
 
-        // Initialize forces matrix.
-        forces = new Vector<>(numWorkers);
-        for(int i = 0; i < numWorkers; i++) {
-            forces.add(new Vector<>(numBodies));
-            for(int j = 0; j < numBodies; j++)
-                forces.get(i).add(new Coordinate(0, 0));
-        }
-
-        if(makeReport) {
-            // Initialize matrix of reports.
-            int totalNumSteps = (numSteps - start) / DT;
-            this.report = new Vector<>(numBodies);
-            for (int i = 0; i < numBodies; i++) {
-                report.add(new Vector<>(totalNumSteps));
-                for (int j = 0; j < totalNumSteps; j++)
-                    report.get(i).add(new Report());
-            }
+    private static CheckpointWriter openCheckpoints (int interval, String integrator, int levels) {
+        try {
+            return new CheckpointWriter(CheckpointWriter.FILE_PATH, interval, numSteps, DT, start, numWorkers, integrator, levels);
+        } catch (IOException e) {
+            System.err.println("ERROR opening checkpoint file: " + e.getMessage());
+            return null;
         }
     }
 
+    private static MetricsWriter openMetrics (String format, int streamInterval) {
+        try {
+            return new MetricsWriter(format, streamInterval);
+        } catch (IOException e) {
+            System.err.println("ERROR opening metrics file: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Integrator createIntegrator (String name, int levels) {
+        // Individual timesteps are measured against the mean distance between bodies.
+        if(levels > 1)
+            return new BlockTimesteps(levels, (QuadTree.X_AXIS_MAX - QuadTree.X_AXIS_MIN) / Math.sqrt(numBodies));
+        else if(name.equals("leapfrog"))
+            return new Leapfrog();
+        else if(name.equals("yoshida4"))
+            return new Yoshida4();
+        else if(name.equals("rk4"))
+            return new RK4();
+        return new Euler();
+    }
+
     // Ensures that newly created coordinates don't occupy the same spot on the grid.
-    private Coordinate obtainValidPosition (HashSet<Coordinate> coordinateSet) {
-        Random rnd = new Random();
+    // The positions come from the seeded generator, so every run starts from the same configuration.
+    private Coordinate obtainValidPosition (Random rnd, HashSet<Coordinate> coordinateSet) {
         Coordinate pos;
         do {pos = new Coordinate(rnd.nextDouble(QuadTree.X_AXIS_MAX - QuadTree.X_AXIS_MIN) + QuadTree.X_AXIS_MIN,
                                  rnd.nextDouble(QuadTree.Y_AXIS_MAX - QuadTree.Y_AXIS_MIN) + QuadTree.Y_AXIS_MIN);}
@@ -87,93 +184,377 @@ public class Runner {
         return pos;
     }
 
-    // Saves position of a body at a specific time.
-    private void reportPosition (int body, int time) {
-        report.get(body).get(time).setPosition(new Coordinate(positions.get(body)));
+    // Opens the trajectory file for the reports, which already holds the masses of the bodies.
+    // The results file is filled by the writing thread as the steps are written, instead of after the run.
+    // A resumed run appends its steps to the trajectory of the run it resumes, and writes the results of the
+    // whole run from it once it is closed. If that file cannot be appended to, it is left as it is, and the
+    // steps after the checkpoint go to a new trajectory without results.
+    private TrajectoryWriter openTrajectory () {
+        double[] masses = bodies.getMassesById();
+        if(resume != null && Files.exists(Path.of(trajectoryPath))) {
+            try {
+                TrajectoryWriter writer = TrajectoryWriter.reopen(trajectoryPath, numBodies, numSteps, DT, start, firstStep);
+                appendedTrajectory = true;
+                keepTrajectory = !format.equals("columnar");
+                return writer;
+            } catch (IOException e) {
+                trajectoryPath = TrajectoryWriter.FILE_PATH.replace(".bin", "-from" + firstStep + ".bin");
+                System.out.println("Cannot append to " + TrajectoryWriter.FILE_PATH + " (" + e.getMessage() + "), the steps after " +
+                                   "the checkpoint are saved to " + trajectoryPath + " without results.");
+                return createTrajectory(masses, false);
+            }
+        }
+        return createTrajectory(masses, true);
     }
 
-    // Saves velocity of a body at a specific time.
-    private void reportVelocity (int body, int time) {
-        report.get(body).get(time).setVelocity(new Coordinate(velocities.get(body)));
+    // A resumed run only reports the steps after its checkpoint, so they start later.
+    private TrajectoryWriter createTrajectory (double[] masses, boolean withResults) {
+        TrajectoryWriter writer;
+        int start = Runner.start + firstStep * DT;
+        try {
+            writer = new TrajectoryWriter(trajectoryPath, numBodies, numSteps, DT, start, numWorkers, masses);
+        } catch (IOException e) {
+            System.err.println("ERROR opening trajectory file: " + e.getMessage());
+            return null;
+        }
+        if(!withResults)
+            return writer;
+
+        try {
+            writer.addSink(openResults(start, masses));
+            keepTrajectory = !format.equals("columnar");
+        } catch (IOException e) {
+            System.err.println("ERROR opening results file: " + e.getMessage());
+        }
+        return writer;
     }
 
-    // Saves force of a body at a specific time.
-    private void reportForce (int body, int time) {
-        report.get(body).get(time).setForce(new Coordinate(Worker.getAggregatedForces().get(body)));
+    private static StepSink openResults (int start, double[] masses) throws IOException {
+        if(format.equals("columnar"))
+            return new ColumnarWriter(ColumnarWriter.FILE_PATH, numBodies, numSteps, DT, start, numWorkers, masses);
+        return new Excel(numBodies, numSteps, DT, start, numWorkers, masses);
     }
 
-    private void reportResults (int time) {
-        for(int body = 0; body < numBodies; body++) {
-            reportPosition(body, time);
-            reportVelocity(body, time);
-            reportForce(body, time);
+    // Writes the results of every step of the trajectory, once it is closed.
+    private boolean saveResults () {
+        try (TrajectoryReader reader = new TrajectoryReader(trajectoryPath)) {
+            double[] masses = new double[numBodies];
+            reader.getMasses().get(masses);
+            reader.replay(openResults(start, masses));
+            return true;
+        } catch (IOException e) {
+            System.err.println("ERROR saving results: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Queues the state of the bodies at this time to be written, indexed by their original index.
+    // If writing fails, the simulation goes on without reports.
+    private void reportResults () {
+        try {
+            trajectory.writeStep(bodies);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("ERROR saving results: " + e.getMessage());
+            trajectory = null;
+        }
+    }
+
+    // Time spent saving reports is not part of the simulation, and a resumed run adds the time before its checkpoint.
+    private double elapsedTime () {
+        return System.nanoTime() - runStartTime - reportTime + (resume != null ? resume.getExecutionTime() : 0);
+    }
+
+    // Waits for the queued steps, and completes the trajectory and results files. Returns whether they were saved.
+    private boolean closeTrajectory (double executionTime) throws InterruptedException {
+        try {
+            trajectory.close(executionTime);
+        } catch (IOException e) {
+            System.err.println("ERROR saving results: " + e.getMessage());
+            return false;
+        }
+        return !appendedTrajectory || saveResults();
+    }
+
+    // A run that timed out keeps its trajectory, so that it can be resumed.
+    private void deleteTrajectory () {
+        try {
+            Files.deleteIfExists(Path.of(trajectoryPath));
+        } catch (IOException e) {
+            System.err.println("ERROR deleting trajectory file: " + e.getMessage());
+        }
+    }
+
+    // Copies the state at the end of this step, to be written while the workers go on.
+    // If writing fails, the simulation goes on without checkpoints.
+    private void saveCheckpoint (Vector<Worker> workers) {
+        Random[] workerRandoms = new Random[workers.size()];
+        for(int i = 0; i < workers.size(); i++)
+            workerRandoms[i] = workers.get(i).getRandom();
+
+        try {
+            checkpoints.saveCheckpoint(currentStep, elapsedTime(), bodies, workerRandoms);
+        } catch (IOException e) {
+            System.err.println("ERROR saving checkpoint: " + e.getMessage());
+            checkpoints = null;
+        }
+    }
+
+    // Waits for the checkpoint being written, which is left in place to resume the run.
+    private void closeCheckpoints () {
+        try {
+            int skipped = checkpoints.close();
+            if(skipped > 0)
+                System.out.println(skipped + " checkpoint(s) skipped while the previous one was being written.");
+        } catch (IOException | InterruptedException e) {
+            System.err.println("ERROR saving checkpoint: " + e.getMessage());
+        }
+    }
+
+    private static List<PhaseRecorder> recordersOf (Vector<Worker> workers) {
+        return workers.stream().map(Worker::getRecorder).toList();
+    }
+
+    // Appends the timers of the last steps to the metrics stream. If writing fails, the run goes on without metrics.
+    private void streamMetrics (Vector<Worker> workers) {
+        try {
+            metrics.streamInterval(currentStep, recordersOf(workers), recorder);
+        } catch (IOException e) {
+            System.err.println("ERROR saving metrics: " + e.getMessage());
+            metrics = null;
+        }
+    }
+
+    private void saveMetrics (Vector<Worker> workers) {
+        try {
+            metrics.write(currentStep - firstStep, executionTime, recordersOf(workers), recorder);
+        } catch (IOException e) {
+            System.err.println("ERROR saving metrics: " + e.getMessage());
+        }
+    }
+
+    // The intervals streamed so far are kept.
+    private void closeMetrics () {
+        try {
+            metrics.close();
+        } catch (IOException e) {
+            System.err.println("ERROR saving metrics: " + e.getMessage());
         }
     }
 
-    private void updateQuadtreeOfWorkers (Vector<Worker> workers) {
-        QuadTree quadTree = new QuadTree(masses, positions);
-        quadTree.computeMassTree();
+    // The engine is shared by every worker and its tree is rebuilt in place, reusing its node arrays.
+    // Building the tree also sorts the bodies in Morton order, so the active bodies are listed and the
+    // chunks are split afterwards. After a stage that only advanced the active bodies (individual timesteps),
+    // the next active bodies come from them, and the engine only catches up with those, unless most bodies
+    // are active: then every body is drifted to the stage and the engine is updated as a whole, as computing
+    // that many forces with the bodies drifted on the fly costs more.
+    private void updateEngineOfWorkers (Vector<Worker> workers, boolean advancedEveryBody) {
+        if(advancedEveryBody) {
+            forceEngine.update(bodies);
+            active.listAll();
+        } else {
+            int numAdvanced = active.size();
+            active.listNext(integrator, bodies, DT, currentStage);
+
+            double time = (double) DT * currentStage / integrator.getNumStages();
+            if(active.size() < FULL_UPDATE_FRACTION * numBodies) {
+                forceEngine.update(bodies, active.getBodies(), numAdvanced, time);
+            } else {
+                for(Worker worker : workers)
+                    worker.driftBodies(time);
+                forceEngine.update(bodies);
+                active.listAll();
+                active.listNext(integrator, bodies, DT, currentStage);
+            }
+        }
+        costZones.partition(bodies.interactions, active.getBodies(), active.size());
+
         for(Worker worker : workers)
-            worker.setQuadTree(quadTree);
+            worker.setForceEngine(forceEngine);
+    }
+
+    /**
+     * Measures the error of the forces of the first step against the given ones, which must be the
+     * exact forces of the initial positions. The comparison is not part of the execution time.
+     */
+    public void compareFirstForcesWith (double[] referenceFx, double[] referenceFy) {
+        this.referenceFx = referenceFx;
+        this.referenceFy = referenceFy;
+    }
+
+    public void setQuiet (boolean quiet) {
+        this.quiet = quiet;
+    }
+
+    // Relative error of the forces in bodies with respect to the reference, as a whole (RMS) and for the worst body.
+    private void measureForceError () {
+        double squaredError = 0, squaredNorm = 0;
+        maxForceError = 0;
+        for(int body = 0; body < numBodies; body++) {
+            int id = bodies.id[body];
+            double errorX = bodies.fx[body] - referenceFx[id];
+            double errorY = bodies.fy[body] - referenceFy[id];
+            double error = errorX * errorX + errorY * errorY;
+            double norm = referenceFx[id] * referenceFx[id] + referenceFy[id] * referenceFy[id];
+            squaredError += error;
+            squaredNorm += norm;
+            if(norm > 0)
+                maxForceError = Math.max(maxForceError, Math.sqrt(error / norm));
+        }
+        rmsForceError = squaredNorm > 0 ? Math.sqrt(squaredError / squaredNorm) : 0;
+    }
+
+    // Executed by the last worker reaching the end of a stage, while the rest wait at the barrier.
+    // Once every stage of the step is done, it decides whether the step is saved.
+    private void finishStep (Vector<Worker> workers) {
+
+        // Forces of the first stage were computed on the initial positions.
+        double initTime = System.nanoTime();
+        if(currentStep == 0 && currentStage == 0 && referenceFx != null)
+            measureForceError();
+        reportTime += System.nanoTime() - initTime;
+
+        boolean advancedEveryBody = integrator.advancesEveryBody(currentStage);
+        boolean lastStage = ++currentStage == integrator.getNumStages();
+        if(lastStage)
+            currentStage = 0;
+
+        recorder.mark();
+        updateEngineOfWorkers(workers, advancedEveryBody);
+        recorder.lap(Phase.ENGINE_UPDATE);
+        if(!lastStage)
+            return;
+
+        // The step is saved once its velocities are synchronized, with the forces of the next one.
+        // A timeout closes the files while holding the lock, so it never sees half a step.
+        synchronized (this) {
+            currentStep++;
+            saveDue = trajectory != null || (checkpoints != null && checkpoints.isDue(currentStep) && currentStep < getTotalNumSteps());
+            if(metrics != null && metrics.isStreamDue(currentStep))
+                streamMetrics(workers);
+        }
+    }
+
+    // Executed by the last worker synchronizing the bodies of a step that is saved, before any of them moves again.
+    private void saveStep (Vector<Worker> workers) {
+        synchronized (this) {
+            double initTime = System.nanoTime();
+            if(trajectory != null) {
+                recorder.mark();
+                reportResults();
+                recorder.lap(Phase.REPORT);
+            }
+            if(checkpoints != null && checkpoints.isDue(currentStep) && currentStep < getTotalNumSteps()) {
+                recorder.mark();
+                saveCheckpoint(workers);
+                recorder.lap(Phase.CHECKPOINT);
+            }
+            reportTime += System.nanoTime() - initTime;
+        }
     }
 
     private Vector<Worker> initializeWorkers (int numWorkers) {
-        CyclicBarrier barrier = new CyclicBarrier(numWorkers);
+        // The first barrier starts the clock once every thread is running, so thread creation is not measured.
+        // The save barrier runs saveStep() once the velocities of a saved step are synchronized, and the step
+        // barrier closes every stage and runs finishStep() before releasing the workers.
         Vector<Worker> workers = new Vector<>();
-        for(int i = 0; i < numWorkers; i++)
-            workers.add(new Worker(i, barrier));
-        updateQuadtreeOfWorkers(workers);
+        CyclicBarrier startBarrier = new CyclicBarrier(numWorkers, () -> runStartTime = System.nanoTime());
+        CyclicBarrier forcesBarrier = new CyclicBarrier(numWorkers);
+        CyclicBarrier saveBarrier = new CyclicBarrier(numWorkers, () -> saveStep(workers));
+        CyclicBarrier stepBarrier = new CyclicBarrier(numWorkers, () -> finishStep(workers));
+        for(int i = 0; i < numWorkers; i++) {
+            workers.add(new Worker(i, startBarrier, forcesBarrier, saveBarrier, stepBarrier, costZones));
+            if(resume != null)
+                workers.get(i).setRandom(resume.getRandom(i));
+        }
+        updateEngineOfWorkers(workers, true);
 
         return workers;
     }
 
-    private void timeout () {
+    // Time each worker spent on the force phase and waiting for the rest. Imbalance is the busiest
+    // worker's time over the mean: the force phase lasts that much longer than with a perfect split.
+    private void printLoadBalance (Vector<Worker> workers) {
+        long maxBusyTime = 0, totalBusyTime = 0;
+        for(Worker worker : workers) {
+            maxBusyTime = Math.max(maxBusyTime, worker.getBusyTime());
+            totalBusyTime += worker.getBusyTime();
+        }
+
+        System.out.println("Worker\tbusy (s)\tidle (s)\tstolen chunks");
+        for(int i = 0; i < workers.size(); i++)
+            System.out.printf("%d\t%.3f\t%.3f\t%d%n", i, workers.get(i).getBusyTime() / 1e9,
+                              workers.get(i).getIdleTime() / 1e9, workers.get(i).getStolenChunks());
+        if(totalBusyTime > 0)
+            System.out.printf("Force phase imbalance: %.3f%n", (double) maxBusyTime * workers.size() / totalBusyTime);
+    }
+
+    // Saves the steps reported so far. The worker finishing the current step waits for the lock until the exit.
+    private void timeout () throws InterruptedException {
         System.out.println("TIMEOUT after " + TIMEOUT + " second(s).");
-        System.exit(1);
+        synchronized (this) {
+            if(trajectory != null)
+                closeTrajectory(elapsedTime());
+            if(checkpoints != null) {
+                closeCheckpoints();
+                System.out.println("Resume the run with --resume " + CheckpointWriter.FILE_PATH);
+            }
+            if(metrics != null)
+                closeMetrics();
+            System.exit(1);
+        }
     }
 
     public void runProgram() throws InterruptedException {
 
-        double executionTime = 0, initTime;
-        int totalNumSteps = (numSteps - start) / DT;
-
-        ExecutorService threadPool;
         Vector<Worker> workers = initializeWorkers(numWorkers);
+        if(makeReport)
+            trajectory = openTrajectory();
 
-        // Run program
-        for(int time = 0; time < totalNumSteps; time++) {
+        // Threads are started once and loop over every timestep themselves.
+        Vector<Thread> threads = new Vector<>();
+        for(Worker worker : workers)
+            threads.add(new Thread(worker, "Worker-" + threads.size()));
 
-            threadPool = Executors.newFixedThreadPool(numWorkers);
-            initTime = System.nanoTime();
-            // Execute workers.
-            for (Worker w : workers)
-                threadPool.execute(w);
+        // Run program
+        for (Thread thread : threads)
+            thread.start();
 
-            threadPool.shutdown();
-            if(!threadPool.awaitTermination(TIMEOUT, TimeUnit.SECONDS))
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            if(thread.isAlive())
                 timeout();
-
-            executionTime += System.nanoTime() - initTime;
-
-            updateQuadtreeOfWorkers(workers);
-
-            // Save results at this time.
-            if(makeReport)
-                reportResults(time);
         }
 
+        executionTime = elapsedTime();
+        forceEngine.close();
+        if(checkpoints != null)
+            closeCheckpoints();
+        if(metrics != null)
+            saveMetrics(workers);
+
         // Save results.
-        System.out.println("Execution time was: " + executionTime/10e9 + " s.");
+        if(!quiet) {
+            System.out.println("Execution time was: " + executionTime/1e9 + " s.");
+            if(printBalance)
+                printLoadBalance(workers);
+        }
 
-        if(makeReport)
-            new Excel().saveResults(report, numBodies, numSteps, DT, start, executionTime, masses, numWorkers);
+        if(trajectory != null && closeTrajectory(executionTime) && !keepTrajectory)
+            deleteTrajectory();
     }
 
+    public double getExecutionTime () {return executionTime;}
+    public double getRmsForceError () {return rmsForceError;}
+    public double getMaxForceError () {return maxForceError;}
+
     public static int getDT () {return DT;}
+    public static int getTotalNumSteps () {return (numSteps - start) / DT;}
+    public static int getFirstStep () {return firstStep;}
     public static int getNumWorkers() {return numWorkers;}
     public static int getNumBodies () {return numBodies;}
-    public static Vector<Double> getMasses () {return masses;}
-    public static Vector<Coordinate> getPositions () {return positions;}
-    public static Vector<Coordinate> getVelocities () {return velocities;}
-    public static Vector<Vector<Coordinate>> getForces () {return forces;}
+    public static BodyState getBodies () {return bodies;}
+    public static Integrator getIntegrator () {return integrator;}
+    public static ActiveBodies getActive () {return active;}
+    public static boolean isSaveDue () {return saveDue;}
 }
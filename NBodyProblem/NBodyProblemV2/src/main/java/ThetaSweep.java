@@ -0,0 +1,101 @@
+import space.BodyState;
+import space.QuadTree;
+
+import java.util.concurrent.TimeUnit;
+
+// Runs the same seeded simulation once per opening angle, and reports the time per step together
+// with the error of the first step's forces against the brute-force forces of V1.
+// The cheapest THETA within the error budget is the one to use. Untimed runs of the first THETA
+// warm up the JIT first, so the time of a value does not depend on its place in the list.
+public class ThetaSweep {
+
+    // Steps run before timing, repeating the warm-up run if it is shorter, unless that takes too long.
+    private static final int WARMUP_STEPS = 40;
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final int numBodies, numSteps, start, DT, numWorkers, leafCapacity, order;
+    private final String engine;
+    private final boolean quadrupole;
+    private final String traversal;
+    private final double incremental;
+    private final String balance, integrator;
+    private final int levels;
+    private final double[] thetas;
+
+    public ThetaSweep (int numBodies, int numSteps, int start, int DT, int numWorkers, int leafCapacity,
+                       String engine, int order, boolean quadrupole, String traversal,
+                       double incremental, String balance, String integrator, int levels, double[] thetas) {
+        this.numBodies = numBodies;
+        this.numSteps = numSteps;
+        this.start = start;
+        this.DT = DT;
+        this.numWorkers = numWorkers;
+        this.leafCapacity = leafCapacity;
+        this.engine = engine;
+        this.order = order;
+        this.quadrupole = quadrupole;
+        this.traversal = traversal;
+        this.incremental = incremental;
+        this.balance = balance;
+        this.integrator = integrator;
+        this.levels = levels;
+        this.thetas = thetas;
+    }
+
+    // Same pairwise kernel as the V1 strips method, over the initial positions.
+    private static void computeDirectForces (BodyState bodies, double[] fx, double[] fy) {
+        double[] x = bodies.x, y = bodies.y, mass = bodies.mass;
+        for(int i = 0; i < bodies.getNumBodies() - 1; i++) {
+            double xi = x[i], yi = y[i], massI = QuadTree.G * mass[i];
+            for(int j = i + 1; j < bodies.getNumBodies(); j++) {
+                double directionX = x[j] - xi;
+                double directionY = y[j] - yi;
+                double distance = Math.sqrt(directionX * directionX + directionY * directionY);
+                double magnitude = (massI * mass[j]) / (distance * distance);
+                double forceX = magnitude * directionX / distance;
+                double forceY = magnitude * directionY / distance;
+                fx[i] += forceX;
+                fy[i] += forceY;
+                fx[j] -= forceX;
+                fy[j] -= forceY;
+            }
+        }
+    }
+
+    // Runs are quiet, so that only the table is printed.
+    private Runner createRunner (double theta) {
+        Runner runner = new Runner(numBodies, numSteps, start, DT, numWorkers, false, "xlsx", leafCapacity, theta, engine, order, quadrupole, traversal, incremental, balance, integrator, levels, 0, null, "off", 0);
+        runner.setQuiet(true);
+        return runner;
+    }
+
+    public void runSweep () throws InterruptedException {
+
+        double[] referenceFx = null, referenceFy = null;
+        int totalNumSteps = (numSteps - start) / DT;
+
+        long warmupStart = System.nanoTime();
+        for(int steps = 0; steps < WARMUP_STEPS && System.nanoTime() - warmupStart < WARMUP_NANOS; steps += totalNumSteps)
+            createRunner(thetas[0]).runProgram();
+
+        System.out.println("theta\tms/step\trms error\tmax error");
+        for(double theta : thetas) {
+            Runner runner = createRunner(theta);
+
+            // Every run starts from the same bodies, so the reference is only computed once.
+            if(referenceFx == null) {
+                referenceFx = new double[numBodies];
+                referenceFy = new double[numBodies];
+                computeDirectForces(Runner.getBodies(), referenceFx, referenceFy);
+            }
+
+            // Garbage of the previous runs is not collected while this one is timed.
+            System.gc();
+            runner.compareFirstForcesWith(referenceFx, referenceFy);
+            runner.runProgram();
+
+            System.out.printf("%.3f\t%.3f\t%.3e\t%.3e%n", theta, runner.getExecutionTime() / 1e6 / totalNumSteps,
+                              runner.getRmsForceError(), runner.getMaxForceError());
+        }
+    }
+}
@@ -1,63 +1,79 @@
-import space.Coordinate;
+import integration.Integrator;
+import space.BodyState;
+import space.ForceEngine;
 import space.QuadTree;
+import utilities.Phase;
+import utilities.PhaseRecorder;
 
 import java.util.Random;
-import java.util.Vector;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
 
 public class Worker implements Runnable {
 
     private final int workerID;
-    private final CyclicBarrier barrier;
-    private QuadTree quadTree;
-    private static Vector<Coordinate> aggregatedForces;
+    private final CyclicBarrier startBarrier;
+    private final CyclicBarrier forcesBarrier;
+    private final CyclicBarrier saveBarrier;
+    private final CyclicBarrier stepBarrier;
+    private ForceEngine forceEngine;
+    private final CostZones costZones;
 
-    public Worker(int workerID, CyclicBarrier barrier) {
-        this.workerID = workerID;
-        this.barrier = barrier;
-
-        // Vector is thread safe.
-        Worker.aggregatedForces = new Vector<>(Runner.getNumBodies());
-        for(int i = 0; i < Runner.getNumBodies(); i++)
-            aggregatedForces.add(new Coordinate(0, 0));
-    }
+    // Time spent computing forces and waiting for the other workers to finish theirs, and chunks taken from them.
+    private long busyTime, idleTime;
+    private int stolenChunks;
 
-    // Calculate total force for every pair of bodies.
-    private void calculateForces () {
+    // Time and allocations of each phase of the stages, written by MetricsWriter.
+    private final PhaseRecorder recorder;
 
-        // Forces are read and written into.
-        Vector<Vector<Coordinate>> forces = Runner.getForces();
+    // Seeded per worker, so runs with the same number of workers are reproducible. Saved in checkpoints.
+    private Random rnd;
 
-        // Using strips method.
-        for(int i = workerID; i < Runner.getNumBodies() - 1; i += Runner.getNumWorkers()) {
-            for(int j = i + 1; j < Runner.getNumBodies(); j++) {
-                Coordinate force = quadTree.computeForceOn(i);
-                forces.get(workerID).get(i).add(force);
-                forces.get(workerID).get(j).substract(force);
-            }
-        }
+    public Worker(int workerID, CyclicBarrier startBarrier, CyclicBarrier forcesBarrier, CyclicBarrier saveBarrier,
+                  CyclicBarrier stepBarrier, CostZones costZones) {
+        this.workerID = workerID;
+        this.startBarrier = startBarrier;
+        this.forcesBarrier = forcesBarrier;
+        this.saveBarrier = saveBarrier;
+        this.stepBarrier = stepBarrier;
+        this.costZones = costZones;
+        this.rnd = new Random(Runner.SEED + workerID);
+        this.recorder = new PhaseRecorder("Worker-" + workerID);
     }
 
-    private Coordinate aggregateForces (Vector<Vector<Coordinate>> forces, int body) {
-        Coordinate force = new Coordinate(0, 0);
-        for (Vector<Coordinate> worker : forces) {
-            force.add(worker.get(body));
-            worker.get(body).set(new Coordinate(0,0));
+    // Bodies are sorted in Morton order, so each worker moves a contiguous range of them. Moving costs
+    // the same for every body, unlike computing forces, which is split by CostZones.
+    private int firstBody () {return (int) ((long) workerID * Runner.getNumBodies() / Runner.getNumWorkers());}
+    private int lastBody () {return (int) ((long) (workerID + 1) * Runner.getNumBodies() / Runner.getNumWorkers());}
+
+    // Calculate the total force on each body of the chunks this worker takes with the force engine (a single traversal
+    // of the QuadTree with Barnes-Hut). It already accounts for every other body, so each body is only written by the
+    // worker that took its chunk.
+    private void calculateForces () {
+
+        // Forces are stored in the body store, to be read later by runner to report them.
+        // Chunks are ranges of the active bodies, which are every body unless they have individual timesteps.
+        ActiveBodies active = Runner.getActive();
+
+        int chunk;
+        while((chunk = costZones.nextChunk(workerID)) != CostZones.NONE) {
+            if(active.isEveryBody())
+                forceEngine.computeForcesOn(costZones.getChunkStart(chunk), costZones.getChunkEnd(chunk));
+            else
+                for(int k = costZones.getChunkStart(chunk); k < costZones.getChunkEnd(chunk); k++)
+                    forceEngine.computeForceOn(active.get(k));
+            if(costZones.getOwner(chunk) != workerID)
+                stolenChunks++;
         }
-        // To be read later by runner to report it.
-        aggregatedForces.set(body, force);
-        return force;
     }
 
-    // Function to keep bodies on the grid defined by QuadTree.
-    private Coordinate computePosition (Coordinate oldPosition, Coordinate deltaP) {
+    // Function to bring bodies that left the grid defined by QuadTree back into it.
+    private void keepOnGrid (BodyState bodies, int body) {
 
-        Random rnd = new Random();
         double gridWidth = QuadTree.X_AXIS_MAX - QuadTree.X_AXIS_MIN;
         double gridHeight = QuadTree.Y_AXIS_MAX - QuadTree.Y_AXIS_MIN;
-        double newPositionX = oldPosition.getX() + deltaP.getX();
-        double newPositionY = oldPosition.getY() + deltaP.getY();
+        double newPositionX = bodies.x[body];
+        double newPositionY = bodies.y[body];
 
         // Use random values to ensure that a lot of nodes don't end up in some equal extreme point.
         if(newPositionX > QuadTree.X_AXIS_MAX)
@@ -69,58 +85,115 @@ public class Worker implements Runnable {
         else if(newPositionY < QuadTree.Y_AXIS_MIN)
             newPositionY = QuadTree.Y_AXIS_MIN + rnd.nextDouble(gridHeight) / 10;
 
-        return new Coordinate(newPositionX, newPositionY);
+        bodies.x[body] = newPositionX;
+        bodies.y[body] = newPositionY;
     }
 
-    // Calculates new velocity and position for each body.
-    private void moveBodies() {
-        Coordinate deltaV, deltaP;
+    // Brings the velocities of the worker's bodies in sync with the positions left by the last timestep, once the
+    // forces on them are known. When the step is reported or checkpointed, the runner saves it before any body moves again.
+    private void synchronizeBodies () throws InterruptedException, BrokenBarrierException {
 
         double DT = Runner.getDT();
-        Vector<Double> masses = Runner.getMasses();
+        Integrator integrator = Runner.getIntegrator();
+        BodyState bodies = Runner.getBodies();
 
-        // Positions and velocities are read and written into.
-        Vector<Coordinate> positions = Runner.getPositions();
-        Vector<Coordinate> velocities = Runner.getVelocities();
-        Vector<Vector<Coordinate>> forces = Runner.getForces();
+        for(int body = firstBody(); body < lastBody(); body++)
+            integrator.synchronize(bodies, body, DT);
+        recorder.lap(Phase.MOVE);
+
+        if(Runner.isSaveDue()) {
+            saveBarrier.await();
+            recorder.lap(Phase.STEP_WAIT);
+        }
+    }
 
-        for(int body = workerID; body < Runner.getNumBodies(); body += Runner.getNumWorkers()) {
+    // Calculates new velocity and position for each body with the integrator, from the forces of a stage.
+    // On stages that only advance the active bodies, each worker takes an equal share of them.
+    private void moveBodies (int stage) {
 
-            // Sum forces and reset them to 0 for the current body
-            Coordinate aggregatedForce = aggregateForces(forces, body);
+        double DT = Runner.getDT();
+        Integrator integrator = Runner.getIntegrator();
 
-            // Compute velocity increase of body i with F = m*(v/DT)
-            deltaV = new Coordinate((aggregatedForce.getX() / masses.get(body)) * DT,
-                                    (aggregatedForce.getY() / masses.get(body)) * DT);
+        // Positions and velocities are read and written into.
+        BodyState bodies = Runner.getBodies();
 
-            // Compute position of body i.
-            deltaP = new Coordinate((velocities.get(body).getX() + deltaV.getX() / 2) * DT,
-                                    (velocities.get(body).getY() + deltaV.getY() / 2) * DT);
+        if(integrator.advancesEveryBody(stage)) {
+            for(int body = firstBody(); body < lastBody(); body++) {
+                integrator.advance(bodies, body, stage, DT);
+                keepOnGrid(bodies, body);
+            }
+            return;
+        }
 
-            // Update velocity and position of body.
-            velocities.get(body).add(deltaV);
-            positions.get(body).set(computePosition(positions.get(body), deltaP));
+        ActiveBodies active = Runner.getActive();
+        int first = (int) ((long) workerID * active.size() / Runner.getNumWorkers());
+        int last = (int) ((long) (workerID + 1) * active.size() / Runner.getNumWorkers());
+        for(int k = first; k < last; k++) {
+            integrator.advance(bodies, active.get(k), stage, DT);
+            keepOnGrid(bodies, active.get(k));
         }
     }
 
+    // Drifts the worker's bodies to the given time of the timestep, for a stage where the force engine is updated
+    // as a whole. Called by Runner between stages, while the worker waits.
+    public void driftBodies (double time) {
+        BodyState bodies = Runner.getBodies();
+        for(int body = firstBody(); body < lastBody(); body++) {
+            bodies.drift(body, time);
+            keepOnGrid(bodies, body);
+        }
+    }
 
     @Override
     public void run () {
 
         try {
-            calculateForces();
-            barrier.await();
-            moveBodies();
-            barrier.await();
+            // The execution time starts once every worker is running.
+            startBarrier.await();
+            recorder.mark();
+
+            // Each stage of the integrator computes the forces on the positions left by the previous one.
+            // Those of the first stage are also the forces on the positions of the previous timestep, which
+            // synchronize its velocities before it is saved.
+            for(int time = Runner.getFirstStep(); time < Runner.getTotalNumSteps(); time++) {
+                for(int stage = 0; stage < Runner.getIntegrator().getNumStages(); stage++) {
+                    calculateForces();
+                    busyTime += recorder.lap(Phase.FORCES);
+                    forcesBarrier.await();
+                    idleTime += recorder.lap(Phase.FORCES_WAIT);
+                    if(stage == 0 && time > Runner.getFirstStep())
+                        synchronizeBodies();
+                    moveBodies(stage);
+                    recorder.lap(Phase.MOVE);
+                    // Runner updates the force engine before any worker starts the next stage.
+                    stepBarrier.await();
+                    recorder.lap(Phase.STEP_WAIT);
+                }
+            }
+
+            // Saving the last timestep takes one more force evaluation, to synchronize its velocities.
+            if(Runner.isSaveDue()) {
+                calculateForces();
+                busyTime += recorder.lap(Phase.FORCES);
+                forcesBarrier.await();
+                idleTime += recorder.lap(Phase.FORCES_WAIT);
+                synchronizeBodies();
+            }
         }
         catch (InterruptedException | BrokenBarrierException e) {
             System.out.println("ERROR in worker " + workerID + ": " + e.getMessage());
         }
     }
 
-    public static Vector<Coordinate> getAggregatedForces () {return aggregatedForces;}
-
-    public void setQuadTree (QuadTree quadTree) {
-        this.quadTree = quadTree;
+    public void setForceEngine (ForceEngine forceEngine) {
+        this.forceEngine = forceEngine;
     }
+
+    public Random getRandom () {return rnd;}
+    public void setRandom (Random rnd) {this.rnd = rnd;}
+
+    public long getBusyTime () {return busyTime;}
+    public long getIdleTime () {return idleTime;}
+    public int getStolenChunks () {return stolenChunks;}
+    public PhaseRecorder getRecorder () {return recorder;}
 }
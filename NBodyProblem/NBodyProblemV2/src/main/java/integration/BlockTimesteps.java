@@ -0,0 +1,98 @@
+package integration;
+
+import space.BodyState;
+
+/*
+ * Leapfrog with individual timesteps for each body, on a hierarchy of levels: a body on level k advances
+ * with DT / 2^k, so a timestep is split into 2^(levels - 1) substeps of the finest level, and a body is
+ * only active (needs its force) on the substeps where its own timestep starts. Only the active bodies are
+ * advanced: the others keep the position where they were last kicked, and the force engine drifts them on
+ * the fly along their velocity, which does not change until their next kick. The last substep drifts
+ * every body to the end of the timestep, so they all start the next one in sync.
+ * As in Leapfrog, the closing half kick of a body's timestep is applied with the forces that open its next one,
+ * and those of the timesteps that end with the timestep of the simulation by synchronize().
+ */
+public class BlockTimesteps implements Integrator {
+
+    // Fraction of the length scale a body may move due to its acceleration over its timestep.
+    public static final double ACCURACY = 0.025;
+
+    // Array of the integrator state: timestep of each body, 0 until its first force is known.
+    private static final int TIMESTEP = 0;
+
+    private final int numSubsteps;
+    private final double lengthScale;
+
+    /**
+     * @param numLevels   Number of timestep levels, 1 for a single timestep shared by every body.
+     * @param lengthScale Length against which ACCURACY is measured, e.g. the mean distance between bodies.
+     */
+    public BlockTimesteps (int numLevels, double lengthScale) {
+        this.numSubsteps = 1 << (numLevels - 1);
+        this.lengthScale = lengthScale;
+    }
+
+    @Override
+    public int getNumStages () {return numSubsteps;}
+
+    @Override
+    public int getNumStateArrays () {return 1;}
+
+    // Number of substeps of a timestep.
+    private int substeps (double timestep, double dt) {
+        return (int) Math.round(timestep / dt * numSubsteps);
+    }
+
+    @Override
+    public int getStride (BodyState bodies, int body, double dt) {
+        double timestep = bodies.integratorState[TIMESTEP][body];
+        return timestep == 0 ? 1 : substeps(timestep, dt);
+    }
+
+    // Every body is drifted to the end of the timestep on its last substep.
+    @Override
+    public boolean advancesEveryBody (int stage) {return stage == numSubsteps - 1;}
+
+    @Override
+    public void advance (BodyState bodies, int body, int stage, double dt) {
+        double[] timestep = bodies.integratorState[TIMESTEP];
+
+        if(stage % getStride(bodies, body, dt) == 0) {
+            double accelerationX = bodies.fx[body] / bodies.mass[body];
+            double accelerationY = bodies.fy[body] / bodies.mass[body];
+
+            // Its force was computed where it is at this substep, so the new velocity starts from there.
+            bodies.drift(body, stage * dt / numSubsteps);
+
+            // Closing half kick of the timestep that ends here (none before the first one), except on the
+            // first substep, where synchronize() already applied it.
+            double kick = stage > 0 ? timestep[body] / 2 : 0;
+
+            // The new timestep is the longest level below sqrt(2 * ACCURACY * lengthScale / |a|) that ends
+            // on a substep where the timesteps of its level start, so that the body stays in sync with them.
+            double acceleration = Math.sqrt(accelerationX * accelerationX + accelerationY * accelerationY);
+            double limit = acceleration > 0 ? Math.sqrt(2 * ACCURACY * lengthScale / acceleration) : dt;
+            int substeps = numSubsteps;
+            while(substeps > 1 && (substeps * dt / numSubsteps > limit || stage % substeps != 0))
+                substeps /= 2;
+            timestep[body] = substeps * dt / numSubsteps;
+
+            kick += timestep[body] / 2;
+            bodies.vx[body] += accelerationX * kick;
+            bodies.vy[body] += accelerationY * kick;
+        }
+
+        if(advancesEveryBody(stage)) {
+            bodies.drift(body, dt);
+            bodies.time[body] = 0;
+        }
+    }
+
+    // Closing half kick of the timestep of the body, which ends with the timestep of the simulation.
+    @Override
+    public void synchronize (BodyState bodies, int body, double dt) {
+        double kick = bodies.integratorState[TIMESTEP][body] / 2;
+        bodies.vx[body] += bodies.fx[body] / bodies.mass[body] * kick;
+        bodies.vy[body] += bodies.fy[body] / bodies.mass[body] * kick;
+    }
+}
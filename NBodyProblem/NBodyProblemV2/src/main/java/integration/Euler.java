@@ -0,0 +1,26 @@
+package integration;
+
+import space.BodyState;
+
+// Original update of the simulation: the acceleration of the current positions is kept constant over
+// the whole timestep. First order and not symplectic, so the energy drifts unless DT is small.
+public class Euler implements Integrator {
+
+    @Override
+    public int getNumStages () {return 1;}
+
+    @Override
+    public void advance (BodyState bodies, int body, int stage, double dt) {
+
+        // Compute velocity increase of body with F = m*(v/DT)
+        double deltaVX = bodies.fx[body] / bodies.mass[body] * dt;
+        double deltaVY = bodies.fy[body] / bodies.mass[body] * dt;
+
+        // Compute position of body.
+        bodies.x[body] += (bodies.vx[body] + deltaVX / 2) * dt;
+        bodies.y[body] += (bodies.vy[body] + deltaVY / 2) * dt;
+
+        bodies.vx[body] += deltaVX;
+        bodies.vy[body] += deltaVY;
+    }
+}
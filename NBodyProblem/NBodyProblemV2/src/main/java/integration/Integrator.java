@@ -0,0 +1,51 @@
+package integration;
+
+import space.BodyState;
+
+// Update of velocities and positions from the forces of a timestep. Higher-order integrators split a
+// timestep into stages, each with its own force evaluation over the positions left by the previous one.
+public interface Integrator {
+
+    // Stages per timestep, each after a force evaluation.
+    int getNumStages ();
+
+    // Arrays per body kept by the integrator from one stage to the next. They live in the body store,
+    // so they are permuted together with the bodies.
+    default int getNumStateArrays () {return 0;}
+
+    /**
+     * Stages between two forces of a body: it needs its force on the stages that are multiples of it. A power
+     * of two, which only changes when the body is advanced, and then only to one that divides that stage.
+     * Integrators that advance every body on every stage need them all; those with individual timesteps
+     * only need the bodies whose timestep starts.
+     */
+    default int getStride (BodyState bodies, int body, double dt) {return 1;}
+
+    /**
+     * Whether every body is advanced on the given stage, or only those that need their force on it.
+     * Bodies that are not advanced keep their position, and their {@code time} tells when it was reached.
+     */
+    default boolean advancesEveryBody (int stage) {return true;}
+
+    /**
+     * Advances a body once the forces on the current positions are in {@code fx} and {@code fy}
+     * (for active bodies; the others keep those of their last active stage). Called on every body, or
+     * only on the active ones on stages that don't advance every body.
+     * Only the body's own entries are written, so different bodies may be advanced concurrently.
+     * The new position may fall outside the grid; it is up to the caller to bring it back.
+     * @param bodies    Body store.
+     * @param body      Body to advance.
+     * @param stage     Stage of the timestep the forces belong to.
+     * @param dt        Length of the timestep.
+     */
+    void advance (BodyState bodies, int body, int stage, double dt);
+
+    /**
+     * Brings the velocity of a body in sync with its position at the end of a timestep, once the forces on
+     * that position are in {@code fx} and {@code fy} (every body is active on the first stage). Called on
+     * every body between two timesteps, before the first stage of the next one, and after the last timestep;
+     * the velocities reported and saved in checkpoints are the synchronized ones. Integrators that leave
+     * them in sync do nothing.
+     */
+    default void synchronize (BodyState bodies, int body, double dt) {}
+}
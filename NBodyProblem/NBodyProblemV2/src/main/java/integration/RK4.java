@@ -0,0 +1,61 @@
+package integration;
+
+import space.BodyState;
+
+// Classic fourth order Runge-Kutta over positions and velocities. Four force evaluations per timestep,
+// and not symplectic, so the energy slowly drifts, but accurate for a given timestep.
+public class RK4 implements Integrator {
+
+    // Arrays of the integrator state: initial position and velocity, and the weighted sums of the slopes.
+    private static final int X0 = 0, Y0 = 1, VX0 = 2, VY0 = 3;
+    private static final int SUM_X = 4, SUM_Y = 5, SUM_VX = 6, SUM_VY = 7;
+
+    // Fraction of the timestep to the point of the next stage, and weight of each stage's slopes.
+    private static final double[] STEP = {0.5, 0.5, 1};
+    private static final double[] WEIGHT = {1, 2, 2, 1};
+
+    @Override
+    public int getNumStages () {return 4;}
+
+    @Override
+    public int getNumStateArrays () {return 8;}
+
+    @Override
+    public void advance (BodyState bodies, int body, int stage, double dt) {
+        double[][] state = bodies.integratorState;
+
+        if(stage == 0) {
+            state[X0][body] = bodies.x[body];
+            state[Y0][body] = bodies.y[body];
+            state[VX0][body] = bodies.vx[body];
+            state[VY0][body] = bodies.vy[body];
+            state[SUM_X][body] = state[SUM_Y][body] = state[SUM_VX][body] = state[SUM_VY][body] = 0;
+        }
+
+        // Slopes of this stage: the velocity at the current point, and the acceleration of its forces.
+        double accelerationX = bodies.fx[body] / bodies.mass[body];
+        double accelerationY = bodies.fy[body] / bodies.mass[body];
+        state[SUM_X][body] += WEIGHT[stage] * bodies.vx[body];
+        state[SUM_Y][body] += WEIGHT[stage] * bodies.vy[body];
+        state[SUM_VX][body] += WEIGHT[stage] * accelerationX;
+        state[SUM_VY][body] += WEIGHT[stage] * accelerationY;
+
+        double step, velocityX, velocityY;
+        if(stage < STEP.length) {
+            // Point of the next stage, from the initial one along this stage's slopes.
+            step = STEP[stage] * dt;
+            velocityX = bodies.vx[body];
+            velocityY = bodies.vy[body];
+            bodies.vx[body] = state[VX0][body] + accelerationX * step;
+            bodies.vy[body] = state[VY0][body] + accelerationY * step;
+        } else {
+            step = dt / 6;
+            velocityX = state[SUM_X][body];
+            velocityY = state[SUM_Y][body];
+            bodies.vx[body] = state[VX0][body] + state[SUM_VX][body] * step;
+            bodies.vy[body] = state[VY0][body] + state[SUM_VY][body] * step;
+        }
+        bodies.x[body] = state[X0][body] + velocityX * step;
+        bodies.y[body] = state[Y0][body] + velocityY * step;
+    }
+}
@@ -0,0 +1,13 @@
+package integration;
+
+// Yoshida's fourth order symplectic integrator: three leapfrog steps of w1, w0 and w1 times the
+// timestep, where w0 < 0 cancels the third order error. Three force evaluations per timestep.
+public class Yoshida4 extends KickDriftKick {
+
+    private static final double W1 = 1 / (2 - Math.cbrt(2));
+    private static final double W0 = 1 - 2 * W1;
+
+    public Yoshida4 () {
+        super(new double[] {W1, W0, W1});
+    }
+}
@@ -0,0 +1,102 @@
+package space;
+
+// Structure-of-arrays store for every body of the simulation.
+// Each property lives in its own primitive array, so workers read and write plain doubles
+// instead of going through synchronized, boxed Vectors.
+public class BodyState {
+
+    private final int numBodies;
+
+    // Written only during the move phase, read by everyone during the force phase.
+    public final double[] x, y;
+    public final double[] vx, vy;
+    public final double[] mass;
+
+    // Time of x and y since the start of the timestep. Integrators that only advance some bodies on a stage
+    // leave the rest where they were, and until their next advance they move in a straight line: at time t of
+    // the timestep the body is at x + vx * (t - time). 0 for every body between timesteps.
+    public final double[] time;
+
+    // Force of each body in the last step (read by Runner to report it).
+    public final double[] fx, fy;
+
+    // Original index of each body. Bodies are permuted into spatial order by the QuadTree,
+    // so reports use this identifier instead of the current position in the arrays.
+    public final int[] id;
+
+    // Interactions (bodies and cells) summed for each body in the last force phase, as a measure of its cost.
+    public final int[] interactions;
+
+    // Arrays kept per body by the integrator between the stages of a timestep.
+    public final double[][] integratorState;
+
+    // Scratch space to permute the arrays.
+    private final double[] scratch;
+    private final int[] scratchId;
+
+    public BodyState (int numBodies) {
+        this(numBodies, 0);
+    }
+
+    public BodyState (int numBodies, int numStateArrays) {
+        this.numBodies = numBodies;
+
+        this.x = new double[numBodies];
+        this.y = new double[numBodies];
+        this.vx = new double[numBodies];
+        this.vy = new double[numBodies];
+        this.mass = new double[numBodies];
+        this.time = new double[numBodies];
+        this.fx = new double[numBodies];
+        this.fy = new double[numBodies];
+        this.id = new int[numBodies];
+        for(int i = 0; i < numBodies; i++)
+            id[i] = i;
+
+        this.interactions = new int[numBodies];
+        this.integratorState = new double[numStateArrays][numBodies];
+
+        this.scratch = new double[numBodies];
+        this.scratchId = new int[numBodies];
+    }
+
+    /**
+     * Reorders every body so that the one at position order[k] moves to position k.
+     * @param order Permutation of the bodies.
+     */
+    public void permute (int[] order) {
+        for(double[] property : new double[][] {x, y, vx, vy, mass, time, fx, fy})
+            permute(property, order);
+        for(double[] property : integratorState)
+            permute(property, order);
+
+        for(int[] property : new int[][] {id, interactions}) {
+            for(int k = 0; k < numBodies; k++)
+                scratchId[k] = property[order[k]];
+            System.arraycopy(scratchId, 0, property, 0, numBodies);
+        }
+    }
+
+    private void permute (double[] property, int[] order) {
+        for(int k = 0; k < numBodies; k++)
+            scratch[k] = property[order[k]];
+        System.arraycopy(scratch, 0, property, 0, numBodies);
+    }
+
+    // Moves a body in a straight line from the position of its time to the given time of the timestep.
+    public void drift (int body, double time) {
+        x[body] += vx[body] * (time - this.time[body]);
+        y[body] += vy[body] * (time - this.time[body]);
+        this.time[body] = time;
+    }
+
+    // Masses indexed by the original index of each body.
+    public double[] getMassesById () {
+        double[] masses = new double[numBodies];
+        for(int k = 0; k < numBodies; k++)
+            masses[id[k]] = mass[k];
+        return masses;
+    }
+
+    public int getNumBodies () {return numBodies;}
+}
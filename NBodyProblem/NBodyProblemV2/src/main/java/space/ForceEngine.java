@@ -0,0 +1,46 @@
+package space;
+
+// Method used by the workers to compute the gravitational forces of a step.
+public interface ForceEngine {
+
+    /**
+     * Prepares the engine for the current positions of the bodies. Called by a single thread
+     * between steps, while the workers wait; it may permute the bodies.
+     * @param bodies Body store of the simulation.
+     */
+    void update (BodyState bodies);
+
+    /**
+     * Prepares the engine for a stage of individual timesteps, where only some bodies were advanced since the
+     * last update and the rest still hold the position of their {@code time}. Forces are computed with every
+     * body drifted to the time of the stage, without moving them in the store. Called like update(), which
+     * must be called instead once every body is back in sync; the bodies are not permuted.
+     * @param bodies      Body store of the simulation.
+     * @param advanced    Bodies advanced since the last update.
+     * @param numAdvanced Number of bodies in advanced.
+     * @param time        Time of the stage since the start of the timestep.
+     */
+    void update (BodyState bodies, int[] advanced, int numAdvanced, double time);
+
+    /**
+     * Computes the gravitational force on a body due to every other body, and stores it in
+     * {@code fx} and {@code fy} of the body store, together with the number of interactions it took
+     * in {@code interactions}. Only that body's entries are written, so different bodies may be
+     * computed concurrently.
+     * @param body Body whose force is computed.
+     */
+    void computeForceOn (int body);
+
+    /**
+     * Computes the forces of the bodies [from, to), one by one unless the engine can share work among them.
+     * @param from First body.
+     * @param to   Last body (exclusive).
+     */
+    default void computeForcesOn (int from, int to) {
+        for(int body = from; body < to; body++)
+            computeForceOn(body);
+    }
+
+    // Releases the threads of the engine, once the run is over.
+    default void close () {}
+}
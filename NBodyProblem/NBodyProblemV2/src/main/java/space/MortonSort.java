@@ -0,0 +1,108 @@
+package space;
+
+// Sorts bodies along a Z-order (Morton) curve over the grid, so that bodies close in space
+// end up close in memory, and every cell of a QuadTree holds a contiguous range of them.
+public class MortonSort {
+
+    // Bits per axis: cells can be split down to 2^-20 of the grid side.
+    public static final int MAX_DEPTH = 20;
+    private static final int CELLS_PER_SIDE = 1 << MAX_DEPTH;
+
+    // Radix sort in passes of 8 bits over the 2 * MAX_DEPTH bits of the codes.
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int PASSES = (2 * MAX_DEPTH + RADIX_BITS - 1) / RADIX_BITS;
+
+    private long[] codes, codesBuffer;
+    private int[] order, orderBuffer;
+    private final int[] histogram = new int[RADIX];
+
+    public MortonSort (int capacity) {
+        allocate(capacity);
+    }
+
+    private void allocate (int capacity) {
+        codes = new long[capacity];
+        codesBuffer = new long[capacity];
+        order = new int[capacity];
+        orderBuffer = new int[capacity];
+    }
+
+    /**
+     * Permutes the bodies into Morton order of their positions.
+     * @param bodies Body store, which is permuted in place.
+     */
+    public void sort (BodyState bodies) {
+        int numBodies = bodies.getNumBodies();
+        if(numBodies > codes.length)
+            allocate(numBodies);
+
+        for(int i = 0; i < numBodies; i++) {
+            codes[i] = encode(bodies.x[i], bodies.y[i]);
+            order[i] = i;
+        }
+
+        // LSD radix sort, which is stable and linear in the number of bodies.
+        for(int pass = 0; pass < PASSES; pass++) {
+            int shift = pass * RADIX_BITS;
+            java.util.Arrays.fill(histogram, 0);
+            for(int i = 0; i < numBodies; i++)
+                histogram[(int) (codes[i] >>> shift) & (RADIX - 1)]++;
+
+            int position = 0;
+            for(int digit = 0; digit < RADIX; digit++) {
+                int count = histogram[digit];
+                histogram[digit] = position;
+                position += count;
+            }
+
+            for(int i = 0; i < numBodies; i++) {
+                int target = histogram[(int) (codes[i] >>> shift) & (RADIX - 1)]++;
+                codesBuffer[target] = codes[i];
+                orderBuffer[target] = order[i];
+            }
+
+            long[] swapCodes = codes; codes = codesBuffer; codesBuffer = swapCodes;
+            int[] swapOrder = order; order = orderBuffer; orderBuffer = swapOrder;
+        }
+
+        bodies.permute(order);
+    }
+
+    // Morton code of the i-th body after the last sort.
+    public long getCode (int i) {return codes[i];}
+
+    // Morton code of a position: the bits of its cell coordinates at the deepest level, interleaved (x first).
+    public static long encode (double x, double y) {
+        long cellX = toCell(x, QuadTree.X_AXIS_MIN, QuadTree.X_AXIS_MAX);
+        long cellY = toCell(y, QuadTree.Y_AXIS_MIN, QuadTree.Y_AXIS_MAX);
+        return spread(cellX) | (spread(cellY) << 1);
+    }
+
+    private static long toCell (double value, double min, double max) {
+        long cell = (long) ((value - min) / (max - min) * CELLS_PER_SIDE);
+        return Math.min(Math.max(cell, 0), CELLS_PER_SIDE - 1);
+    }
+
+    // Inserts a 0 bit between each of the lower 32 bits of value.
+    private static long spread (long value) {
+        value &= 0xFFFFFFFFL;
+        value = (value | (value << 16)) & 0x0000FFFF0000FFFFL;
+        value = (value | (value << 8)) & 0x00FF00FF00FF00FFL;
+        value = (value | (value << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        value = (value | (value << 2)) & 0x3333333333333333L;
+        value = (value | (value << 1)) & 0x5555555555555555L;
+        return value;
+    }
+
+    // Inverse of spread: keeps every even bit of value, packed together.
+    public static long compact (long value) {
+        value &= 0x5555555555555555L;
+        value = (value | (value >>> 1)) & 0x3333333333333333L;
+        value = (value | (value >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        value = (value | (value >>> 4)) & 0x00FF00FF00FF00FFL;
+        value = (value | (value >>> 8)) & 0x0000FFFF0000FFFFL;
+        value = (value | (value >>> 16)) & 0x00000000FFFFFFFFL;
+        return value;
+    }
+}
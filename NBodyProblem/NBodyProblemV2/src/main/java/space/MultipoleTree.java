@@ -0,0 +1,496 @@
+package space;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Fast multipole method over the cells of a QuadTree.
+ * Bodies attract with G * m * m' / r^2 in the plane, so the potential is the 1/r of 3D space and not
+ * the logarithm of the 2D Laplace equation. Expansions are therefore Cartesian Taylor series of 1/r,
+ * truncated at a total degree given by the order, instead of complex power series.
+ *
+ * With psi(x) = sum of m_j / |x - x_j|, the force on body i is G * m_i * grad psi(x_i). For every cell:
+ *  - multipole[n] = sum of m_j * (c - x_j)^n over its bodies, around the center c of the cell.
+ *  - local[m] are the Taylor coefficients of the far field psi(c + y) = sum of local[m] * y^m.
+ * Exponents are multi-indices n = (n1, n2), with x^n = x1^n1 * x2^n2.
+ *
+ * The expansions hold the bodies where they are, so on the stages of individual timesteps, where only a few
+ * bodies are advanced and the rest drift, the forces come from the Barnes-Hut traversal of the tree instead,
+ * which keeps its centers of mass up to date for the advanced bodies alone.
+ */
+public class MultipoleTree implements ForceEngine {
+
+    public static final int DEFAULT_ORDER = 4;
+
+    private final QuadTree tree;
+    private final int order;
+    private final int numCoefficients;          // Coefficients of total degree <= order
+    private final double theta;
+    private final double[][] binomial;
+
+    // Terms of the multipole to local translation, flattened so that it is a single loop:
+    // local[target] += factor * multipole[source] * derivatives[derivative].
+    private final int[] translationTarget, translationSource, translationDerivative;
+    private final double[] translationFactor;
+
+    // Expansions of each node of the tree, numCoefficients per node.
+    private double[] multipole, local;
+    private double[] centerX, centerY, radius;
+    private int[] leafOf;
+
+    // Leaves whose bodies interact directly with the bodies of each leaf:
+    // nearList[nearStart[leaf]], ..., nearList[nearStart[leaf] + nearCount[leaf] - 1].
+    private int[] nearStart, nearCount;
+    private int[] nearList;
+    private final AtomicInteger nearSize = new AtomicInteger();
+
+    private BodyState bodies;
+
+    /**
+     * @param capacity     Number of bodies the arrays are allocated for.
+     * @param parallelism  Threads used to build the tree and the expansions.
+     * @param leafCapacity Maximum number of bodies in a leaf.
+     * @param theta        Two cells interact through expansions when the sum of their radii is
+     *                     less than theta times the distance between their centers.
+     * @param order        Highest total degree of the expansions.
+     * @param rebuildThreshold Fraction of bodies that may change leaf between steps while keeping the tree.
+     */
+    public MultipoleTree (int capacity, int parallelism, int leafCapacity, double theta, int order, double rebuildThreshold) {
+        this.tree = new QuadTree(capacity, parallelism, leafCapacity, theta, false, false, rebuildThreshold);
+        this.order = order;
+        this.numCoefficients = (order + 1) * (order + 2) / 2;
+        this.theta = theta;
+
+        this.binomial = new double[order + 1][order + 1];
+        for(int n = 0; n <= order; n++) {
+            binomial[n][0] = 1;
+            for(int k = 1; k <= n; k++)
+                binomial[n][k] = binomial[n - 1][k - 1] + (k <= n - 1 ? binomial[n - 1][k] : 0);
+        }
+
+        int numTerms = 0;
+        for(int degree = 0; degree <= order; degree++)
+            numTerms += (degree + 1) * (order - degree + 1) * (order - degree + 2) / 2;
+        this.translationTarget = new int[numTerms];
+        this.translationSource = new int[numTerms];
+        this.translationDerivative = new int[numTerms];
+        this.translationFactor = new double[numTerms];
+
+        int term = 0;
+        for(int m1 = 0; m1 <= order; m1++) {
+            for(int m2 = 0; m1 + m2 <= order; m2++) {
+                for(int n1 = 0; m1 + m2 + n1 <= order; n1++) {
+                    for(int n2 = 0; m1 + m2 + n1 + n2 <= order; n2++) {
+                        translationTarget[term] = index(m1, m2);
+                        translationSource[term] = index(n1, n2);
+                        translationDerivative[term] = index(n1 + m1, n2 + m2);
+                        translationFactor[term] = binomial[n1 + m1][m1] * binomial[n2 + m2][m2];
+                        term++;
+                    }
+                }
+            }
+        }
+
+        allocate(capacity);
+    }
+
+    private void allocate (int capacity) {
+        int maxNodes = Math.max(1, 2 * capacity);
+        this.multipole = new double[maxNodes * numCoefficients];
+        this.local = new double[maxNodes * numCoefficients];
+        this.centerX = new double[maxNodes];
+        this.centerY = new double[maxNodes];
+        this.radius = new double[maxNodes];
+        this.nearStart = new int[maxNodes];
+        this.nearCount = new int[maxNodes];
+        this.nearList = new int[8 * maxNodes];
+        this.leafOf = new int[capacity];
+    }
+
+    // Position of the coefficient of exponent (n1, n2): coefficients are stored by total degree.
+    private static int index (int n1, int n2) {
+        int degree = n1 + n2;
+        return degree * (degree + 1) / 2 + n2;
+    }
+
+    private int size (int node) {
+        return tree.bodyEnd[node] - tree.bodyStart[node];
+    }
+
+    // The pool of the tree also builds the expansions.
+    @Override
+    public void close () {
+        tree.close();
+    }
+
+    /**
+     * Builds the tree, the multipole expansions of every cell (upwards) and the local expansions of
+     * every cell with the near list of every leaf (downwards). Only the evaluation at each body is left.
+     * @param bodies Body store, which is permuted in Morton order by the tree.
+     */
+    @Override
+    public void update (BodyState bodies) {
+        tree.updateStructure(bodies);
+        this.bodies = bodies;
+        if(bodies.getNumBodies() > leafOf.length)
+            allocate(bodies.getNumBodies());
+        if(tree.root == QuadTree.EMPTY)
+            return;
+
+        // Once stages of individual timesteps have used the tree, its masses are kept for the next ones.
+        if(tree.hasVelocities())
+            tree.computeMassTree();
+
+        tree.pool.invoke(new UpwardTask(tree.root));
+
+        // Near lists are written in a shared array; if it was too small, the traversal is repeated with a bigger one.
+        while(true) {
+            nearSize.set(0);
+            Arrays.fill(local, tree.root * numCoefficients, (tree.root + 1) * numCoefficients, 0);
+            tree.pool.invoke(new TraversalTask(tree.root, new int[] {tree.root}));
+            if(nearSize.get() <= nearList.length)
+                break;
+            nearList = new int[nearSize.get() + nearSize.get() / 4];
+        }
+    }
+
+    /* === === === === === === === === === === === === === === === === === ===
+     *  Upward pass: particle to multipole (P2M) and multipole to multipole (M2M)
+     * === === === === === === === === === === === === === === === === === === */
+
+    private final class UpwardTask extends RecursiveAction {
+        private final int node;
+
+        UpwardTask (int node) {
+            this.node = node;
+        }
+
+        @Override
+        protected void compute () {
+            upward(node, true);
+        }
+    }
+
+    private void upward (int node, boolean parallel) {
+        double width = tree.maxX[node] - tree.minX[node];
+        double height = tree.maxY[node] - tree.minY[node];
+        centerX[node] = tree.minX[node] + width / 2;
+        centerY[node] = tree.minY[node] + height / 2;
+        radius[node] = Math.sqrt(width * width + height * height) / 2;
+        Arrays.fill(multipole, node * numCoefficients, (node + 1) * numCoefficients, 0);
+
+        if(tree.leaf[node]) {
+            for(int body = tree.bodyStart[node]; body < tree.bodyEnd[node]; body++) {
+                leafOf[body] = node;
+                particleToMultipole(body, node);
+            }
+            return;
+        }
+
+        boolean forked = parallel && size(node) > QuadTree.PARALLEL_CUTOFF;
+        if(forked) {
+            ArrayList<UpwardTask> tasks = new ArrayList<>(4);
+            for(int quadrant = 0; quadrant < 4; quadrant++) {
+                int child = tree.children[4 * node + quadrant];
+                if(child != QuadTree.EMPTY)
+                    tasks.add(new UpwardTask(child));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        }
+
+        for(int quadrant = 0; quadrant < 4; quadrant++) {
+            int child = tree.children[4 * node + quadrant];
+            if(child == QuadTree.EMPTY)
+                continue;
+            if(!forked)
+                upward(child, false);
+            multipoleToMultipole(child, node);
+        }
+    }
+
+    private void particleToMultipole (int body, int node) {
+        int base = node * numCoefficients;
+        double sx = centerX[node] - bodies.x[body];
+        double sy = centerY[node] - bodies.y[body];
+
+        double powerX = bodies.mass[body];
+        for(int n1 = 0; n1 <= order; n1++) {
+            double power = powerX;
+            for(int n2 = 0; n1 + n2 <= order; n2++) {
+                multipole[base + index(n1, n2)] += power;
+                power *= sy;
+            }
+            powerX *= sx;
+        }
+    }
+
+    // (c - x_j)^n = ((c - c') + (c' - x_j))^n, expanded with the binomial theorem on each axis.
+    private void multipoleToMultipole (int child, int parent) {
+        int childBase = child * numCoefficients, parentBase = parent * numCoefficients;
+        double dx = centerX[parent] - centerX[child];
+        double dy = centerY[parent] - centerY[child];
+
+        for(int k1 = 0; k1 <= order; k1++) {
+            for(int k2 = 0; k1 + k2 <= order; k2++) {
+                double moment = multipole[childBase + index(k1, k2)];
+                if(moment == 0)
+                    continue;
+
+                double powerX = moment;
+                for(int j1 = 0; k1 + k2 + j1 <= order; j1++) {
+                    double power = powerX;
+                    for(int j2 = 0; k1 + k2 + j1 + j2 <= order; j2++) {
+                        multipole[parentBase + index(k1 + j1, k2 + j2)] += binomial[k1 + j1][k1] * binomial[k2 + j2][k2] * power;
+                        power *= dy;
+                    }
+                    powerX *= dx;
+                }
+            }
+        }
+    }
+
+    /* === === === === === === === === === === === === === === === === === ===
+     *  Downward pass: dual tree traversal with multipole to local (M2L) and local to local (L2L)
+     * === === === === === === === === === === === === === === === === === === */
+
+    private final class TraversalTask extends RecursiveAction {
+        private final int target;
+        private final int[] candidates;
+
+        TraversalTask (int target, int[] candidates) {
+            this.target = target;
+            this.candidates = candidates;
+        }
+
+        @Override
+        protected void compute () {
+            new Traversal(candidates).process(target, 0, candidates.length, true);
+        }
+    }
+
+    /*
+     * Computes the local expansions of a subtree of targets. Each target cell receives a list of
+     * candidate source cells from its parent. Every candidate far enough is added to the target's local
+     * expansion, and the rest are either opened or kept for the target's children. Targets are never
+     * shared between threads, so no synchronization is needed.
+     */
+    private final class Traversal {
+        // Candidate lists of the targets being processed, stacked by depth.
+        private int[] keep;
+        private int keepTop;
+
+        // Sources examined against the current target, and its near leaves.
+        private int[] work = new int[64];
+        private int[] near = new int[64];
+
+        private final double[] derivatives = new double[numCoefficients];
+        private final double[] powersX = new double[order + 1], powersY = new double[order + 1];
+
+        Traversal (int[] candidates) {
+            this.keep = Arrays.copyOf(candidates, Math.max(64, 2 * candidates.length));
+            this.keepTop = candidates.length;
+        }
+
+        /**
+         * @param target   Cell whose local expansion is complete, except for the candidates.
+         * @param from     First candidate in keep.
+         * @param to       Last candidate in keep (exclusive), which is also the top of the stack.
+         * @param parallel Whether the children of big targets may be processed by other threads.
+         */
+        void process (int target, int from, int to, boolean parallel) {
+            int workSize = to - from, nearSize = 0;
+            if(workSize > work.length)
+                work = Arrays.copyOf(work, 2 * workSize);
+            System.arraycopy(keep, from, work, 0, workSize);
+
+            int keepFrom = keepTop;
+            boolean targetIsLeaf = tree.leaf[target];
+            for(int i = 0; i < workSize; i++) {
+                int source = work[i];
+                boolean sourceIsLeaf = tree.leaf[source];
+
+                if(areWellSeparated(target, source))
+                    multipoleToLocal(source, target);
+                else if(targetIsLeaf && sourceIsLeaf) {
+                    if(nearSize == near.length)
+                        near = Arrays.copyOf(near, 2 * nearSize);
+                    near[nearSize++] = source;
+                }
+                else if(!targetIsLeaf && (sourceIsLeaf || radius[target] >= radius[source])) {
+                    if(keepTop == keep.length)
+                        keep = Arrays.copyOf(keep, 2 * keepTop);
+                    keep[keepTop++] = source;
+                }
+                else {
+                    // The source is opened and its children are examined against this same target.
+                    for(int quadrant = 0; quadrant < 4; quadrant++) {
+                        int child = tree.children[4 * source + quadrant];
+                        if(child == QuadTree.EMPTY)
+                            continue;
+                        if(workSize == work.length)
+                            work = Arrays.copyOf(work, 2 * workSize);
+                        work[workSize++] = child;
+                    }
+                }
+            }
+
+            if(targetIsLeaf) {
+                int offset = nearSize(nearSize);
+                nearStart[target] = offset;
+                nearCount[target] = nearSize;
+                if(offset + nearSize <= nearList.length)
+                    System.arraycopy(near, 0, nearList, offset, nearSize);
+                return;
+            }
+
+            // The local expansion of the target is complete, so it can be shifted to its children.
+            int keepTo = keepTop;
+            ArrayList<TraversalTask> tasks = parallel && size(target) > QuadTree.PARALLEL_CUTOFF ? new ArrayList<>(4) : null;
+            for(int quadrant = 0; quadrant < 4; quadrant++) {
+                int child = tree.children[4 * target + quadrant];
+                if(child == QuadTree.EMPTY)
+                    continue;
+
+                localToLocal(target, child);
+                if(tasks != null)
+                    tasks.add(new TraversalTask(child, Arrays.copyOfRange(keep, keepFrom, keepTo)));
+                else
+                    process(child, keepFrom, keepTo, false);
+            }
+            if(tasks != null)
+                ForkJoinTask.invokeAll(tasks);
+
+            keepTop = keepFrom;
+        }
+
+        private int nearSize (int count) {
+            return MultipoleTree.this.nearSize.getAndAdd(count);
+        }
+
+        private boolean areWellSeparated (int target, int source) {
+            double dx = centerX[target] - centerX[source];
+            double dy = centerY[target] - centerY[source];
+            double radii = radius[target] + radius[source];
+            return radii * radii < theta * theta * (dx * dx + dy * dy);
+        }
+
+        /*
+         * Taylor coefficients of 1/r at (x, y), derivatives[n] = D^n (1/r) / n!, from the recurrence
+         * |n| r^2 a_n + (2|n| - 1) (x a_{n-e1} + y a_{n-e2}) + (|n| - 1) (a_{n-2e1} + a_{n-2e2}) = 0.
+         */
+        private void computeDerivatives (double x, double y) {
+            double r2 = x * x + y * y;
+            derivatives[0] = 1 / Math.sqrt(r2);
+            for(int degree = 1; degree <= order; degree++) {
+                for(int n2 = 0; n2 <= degree; n2++) {
+                    int n1 = degree - n2;
+                    double first = 0, second = 0;
+                    if(n1 >= 1) first += x * derivatives[index(n1 - 1, n2)];
+                    if(n2 >= 1) first += y * derivatives[index(n1, n2 - 1)];
+                    if(n1 >= 2) second += derivatives[index(n1 - 2, n2)];
+                    if(n2 >= 2) second += derivatives[index(n1, n2 - 2)];
+                    derivatives[index(n1, n2)] = -((2 * degree - 1) * first + (degree - 1) * second) / (degree * r2);
+                }
+            }
+        }
+
+        // local[m] += sum over n of C(n + m, m) * multipole[n] * a_{n+m}(target - source).
+        private void multipoleToLocal (int source, int target) {
+            int sourceBase = source * numCoefficients, targetBase = target * numCoefficients;
+            computeDerivatives(centerX[target] - centerX[source], centerY[target] - centerY[source]);
+
+            for(int term = 0; term < translationFactor.length; term++)
+                local[targetBase + translationTarget[term]] += translationFactor[term]
+                        * multipole[sourceBase + translationSource[term]] * derivatives[translationDerivative[term]];
+        }
+
+        // The child's expansion is the parent's one around the child's center: local'[k] = sum over m >= k of C(m, k) * local[m] * e^(m - k).
+        private void localToLocal (int parent, int child) {
+            int parentBase = parent * numCoefficients, childBase = child * numCoefficients;
+            double ex = centerX[child] - centerX[parent];
+            double ey = centerY[child] - centerY[parent];
+            powersX[0] = powersY[0] = 1;
+            for(int k = 1; k <= order; k++) {
+                powersX[k] = powersX[k - 1] * ex;
+                powersY[k] = powersY[k - 1] * ey;
+            }
+
+            for(int k1 = 0; k1 <= order; k1++) {
+                for(int k2 = 0; k1 + k2 <= order; k2++) {
+                    double sum = 0;
+                    for(int m1 = k1; m1 + k2 <= order; m1++)
+                        for(int m2 = k2; m1 + m2 <= order; m2++)
+                            sum += binomial[m1][k1] * binomial[m2][k2] * local[parentBase + index(m1, m2)]
+                                   * powersX[m1 - k1] * powersY[m2 - k2];
+                    local[childBase + index(k1, k2)] = sum;
+                }
+            }
+        }
+    }
+
+    /* === === === === === === === === === === === === === === === === === ===
+     *  Evaluation: local to particle (L2P) and particle to particle (P2P)
+     * === === === === === === === === === === === === === === === === === === */
+
+    // Only the tree is updated on stages of individual timesteps.
+    @Override
+    public void update (BodyState bodies, int[] advanced, int numAdvanced, double time) {
+        tree.update(bodies, advanced, numAdvanced, time);
+    }
+
+    @Override
+    public void computeForceOn (int body) {
+        if(tree.isDrifting()) {
+            tree.computeForceOn(body);
+            return;
+        }
+
+        int leaf = leafOf[body];
+        double[] x = bodies.x, y = bodies.y, mass = bodies.mass;
+        double xi = x[body], yi = y[body];
+
+        // Far field: gradient of the local expansion of the body's leaf.
+        int base = leaf * numCoefficients;
+        double yx = xi - centerX[leaf], yy = yi - centerY[leaf];
+        double forceX = 0, forceY = 0;
+        double powerX = 1, previousPowerX = 0;
+        for(int m1 = 0; m1 <= order; m1++) {
+            double powerY = 1, previousPowerY = 0;
+            for(int m2 = 0; m1 + m2 <= order; m2++) {
+                double coefficient = local[base + index(m1, m2)];
+                forceX += m1 * coefficient * previousPowerX * powerY;
+                forceY += m2 * coefficient * powerX * previousPowerY;
+                previousPowerY = powerY;
+                powerY *= yy;
+            }
+            previousPowerX = powerX;
+            powerX *= yx;
+        }
+
+        // Near field: direct sum over the bodies of the near leaves, the body's own leaf included.
+        // The local expansion counts as one more interaction.
+        int interactions = 1;
+        for(int k = nearStart[leaf]; k < nearStart[leaf] + nearCount[leaf]; k++) {
+            int source = nearList[k];
+            interactions += tree.bodyEnd[source] - tree.bodyStart[source];
+            for(int other = tree.bodyStart[source]; other < tree.bodyEnd[source]; other++) {
+                double directionX = x[other] - xi;
+                double directionY = y[other] - yi;
+                double distanceSquared = directionX * directionX + directionY * directionY;
+                if(distanceSquared == 0)
+                    continue;
+
+                double scale = mass[other] / (distanceSquared * Math.sqrt(distanceSquared));
+                forceX += scale * directionX;
+                forceY += scale * directionY;
+            }
+        }
+
+        bodies.fx[body] = QuadTree.G * mass[body] * forceX;
+        bodies.fy[body] = QuadTree.G * mass[body] * forceY;
+        bodies.interactions[body] = interactions;
+    }
+}
@@ -1,236 +1,1021 @@
 package space;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QuadTree implements ForceEngine {
+
+    // Opening angle: a cell is approximated by its center of mass when width / distance < theta.
+    public static final double DEFAULT_THETA = 0.5;
+    public final static double G = 6.67e-11;
+    public final static double X_AXIS_MIN = 0.0;
+    public final static double Y_AXIS_MIN = 0.0;
+    public final static double X_AXIS_MAX = 50.0;
+    public final static double Y_AXIS_MAX = 50.0;
+
+    static final int EMPTY = -1;
+
+    // Subtrees with fewer bodies than this are built and aggregated by a single thread.
+    static final int PARALLEL_CUTOFF = 2048;
+
+    // Cells with more bodies than this are split, unless told otherwise.
+    public static final int DEFAULT_LEAF_CAPACITY = 8;
+
+    /*
+     * Region quadtree over the bodies sorted in Morton order. Bodies live in the leaves, and each
+     * node covers the contiguous range [bodyStart, bodyEnd) of the sorted bodies. A cell whose bodies
+     * all fall in the same quadrant is not stored: its only child takes its place, so every internal
+     * node has at least two children and there are fewer than 2 * numBodies nodes.
+     * Instead of linked Node objects, each property of a node lives in a primitive array indexed by
+     * the node. The arrays are only allocated when the number of bodies exceeds the capacity, so
+     * rebuilding the tree on every timestep only allocates the few tasks of the subtrees built in parallel.
+     * The structure of the tree is package-private, as MultipoleTree expands over the same cells.
+     */
+    private int capacity;
+    int[] children;                                // 4 entries per node in Morton order (SW, SE, NW, NE), EMPTY if there is no child
+    double[] minX, maxX, minY, maxY;               // Cell of each node
+    int[] bodyStart, bodyEnd;                      // Bodies in the subtree of each node
+    private int[] parent;                          // EMPTY for the root
+    boolean[] leaf;
+    private double[] accumulatedMass;              // Mass of all the bodies in the subtree
+    private double[] centerOfMassX, centerOfMassY;
+    private double[] quadrupoleXX, quadrupoleXY, quadrupoleYY;   // Traceless quadrupole around the center of mass
+
+    private final int leafCapacity;
+    private final double theta;
+    private final boolean quadrupole;
+    private final boolean groupTraversal;
+
+    // Incremental updates: fraction of bodies that may leave their leaf before the tree is rebuilt (0 to always rebuild).
+    private final double rebuildThreshold;
+    private int[] leafOf, newLeafOf, order;
+    private int[] leafOrder, leafCursor;           // Leaves in Morton order, and scratch space to count their bodies
+    private int numLeaves;
+    private int[] level;                           // Depth of the cell of each node
+    private long[] prefix;                         // Morton code of the cell of each node, as the first 2 * level bits of its bodies' codes
+    private final MortonSort mortonSort;
+    final AtomicInteger numNodes = new AtomicInteger();
+
+    // Individual timesteps: between two full updates only the active bodies are advanced, and the rest are
+    // drifted on the fly to the time of the stage (see BodyState.time). Each cell then keeps the center of mass
+    // its bodies would have at the time of the last full update, moving with their mean velocity, and only the
+    // cells above an advanced body are aggregated again. The velocities are allocated on the first such stage.
+    private double[] velocityX, velocityY;
+    private boolean drifting;                      // Whether the last update was one of those stages
+    private double epoch, time;                    // Times of the last full update and of the stage, in the timestep
+    private int[] pending, pendingMark;            // Cells to aggregate again, each marked with the stage that added it
+    private int[] pendingByDepth, depthCount;
+    private int numStages;
+
+    BodyState bodies;
+    int root;
+
+    // Builds and aggregates independent subtrees in parallel.
+    final ForkJoinPool pool;
+
+    public QuadTree (int capacity, int parallelism) {
+        this(capacity, parallelism, DEFAULT_LEAF_CAPACITY, DEFAULT_THETA, false, false, 0);
+    }
+
+    /**
+     * @param capacity         Number of bodies the arrays are allocated for.
+     * @param parallelism      Threads used to build the tree and aggregate its masses.
+     * @param leafCapacity     Maximum number of bodies in a leaf, unless they share the deepest cell.
+     * @param theta            Opening angle, 0 to never approximate.
+     * @param quadrupole       Whether approximated cells add their quadrupole moment to the monopole.
+     * @param groupTraversal   Whether the bodies of a leaf share a single traversal of the tree.
+     * @param rebuildThreshold Fraction of bodies that may change leaf between steps while keeping the tree,
+     *                         0 to rebuild it on every step.
+     */
+    public QuadTree (int capacity, int parallelism, int leafCapacity, double theta, boolean quadrupole,
+                     boolean groupTraversal, double rebuildThreshold) {
+        this.quadrupole = quadrupole;
+        this.groupTraversal = groupTraversal;
+        this.rebuildThreshold = rebuildThreshold;
+        allocate(capacity);
+        this.leafCapacity = leafCapacity;
+        this.theta = theta;
+        this.mortonSort = new MortonSort(capacity);
+        this.root = EMPTY;
+        this.pool = new ForkJoinPool(parallelism);
+    }
 
-public class QuadTree {
+    // The pool is not needed once the run is over, and its threads would outlive it.
+    @Override
+    public void close () {
+        pool.shutdown();
+    }
 
-    private static final Double THETA = 0.5;
-    public final static Double G = 6.67e-11;
-    public final static Double X_AXIS_MIN = 0.0;
-    public final static Double Y_AXIS_MIN = 0.0;
-    public final static Double X_AXIS_MAX = 50.0;
-    public final static Double Y_AXIS_MAX = 50.0;
+    private void allocate (int capacity) {
+        int maxNodes = Math.max(1, 2 * capacity);
+        this.capacity = capacity;
+        this.children = new int[4 * maxNodes];
+        this.minX = new double[maxNodes];
+        this.maxX = new double[maxNodes];
+        this.minY = new double[maxNodes];
+        this.maxY = new double[maxNodes];
+        this.bodyStart = new int[maxNodes];
+        this.bodyEnd = new int[maxNodes];
+        this.parent = new int[maxNodes];
+        this.leaf = new boolean[maxNodes];
+        this.accumulatedMass = new double[maxNodes];
+        this.centerOfMassX = new double[maxNodes];
+        this.centerOfMassY = new double[maxNodes];
+        this.leafOf = new int[capacity];
+        this.newLeafOf = new int[capacity];
+        this.order = new int[capacity];
+        this.leafOrder = new int[maxNodes];
+        this.leafCursor = new int[maxNodes];
+        this.level = new int[maxNodes];
+        this.prefix = new long[maxNodes];
+        if(quadrupole) {
+            this.quadrupoleXX = new double[maxNodes];
+            this.quadrupoleXY = new double[maxNodes];
+            this.quadrupoleYY = new double[maxNodes];
+        }
+        this.velocityX = this.velocityY = null;
+    }
 
-    private final Vector<Node> nodes;
+    /**
+     * Rebuilds the tree from scratch for the current positions of the bodies, reusing the node arrays.
+     * The bodies are first permuted into Morton order, and the tree is then built from the sorted
+     * codes without inserting bodies one by one: the cells of a node's children are consecutive
+     * ranges of the node's bodies. The subtrees of big cells are built concurrently.
+     * @param bodies Body store, which is permuted and then read directly by the tree.
+     */
+    public void build (BodyState bodies) {
+        int numBodies = bodies.getNumBodies();
+        if(numBodies > capacity)
+            allocate(numBodies);
+
+        this.bodies = bodies;
+        this.root = EMPTY;
+        if(numBodies == 0)
+            return;
+
+        mortonSort.sort(bodies);
+
+        numNodes.set(1);
+        root = 0;
+        parent[root] = EMPTY;
+        pool.invoke(new BuildTask(root, 0, numBodies, 0));
+
+        // Bodies are sorted, so the leaves appear in Morton order along them.
+        numLeaves = 0;
+        for(int body = 0; body < numBodies; body++)
+            if(body == 0 || leafOf[body] != leafOf[body - 1])
+                leafOrder[numLeaves++] = leafOf[body];
+    }
 
-    // Note the position of the node is the same position from the body at Runner (reference wise).
-    public QuadTree(Vector<Double> masses, Vector<Coordinate> positions) {
-        this.nodes = new Vector<>();
-        for (int i = 0; i < masses.size(); i++)
-            this.insert(new NodeInfo(masses.get(i), positions.get(i)));
+    /**
+     * Updates the tree for the new positions of the bodies. Bodies that are still inside the cell of
+     * their leaf stay there, and those that left it are moved to the leaf holding their new position;
+     * the bodies are then regrouped by leaf in Morton order of the leaves. The tree is rebuilt from
+     * scratch when too many bodies changed leaf, a body is outside every cell or a leaf grows too much.
+     * @param bodies Body store, which is permuted and then read directly by the tree.
+     */
+    public void updateStructure (BodyState bodies) {
+        // Every body is at the same time on a full update, where the centers of mass are then taken.
+        drifting = false;
+        epoch = time = bodies.getNumBodies() > 0 ? bodies.time[0] : 0;
+        if(rebuildThreshold == 0 || root == EMPTY || bodies != this.bodies || !updateIncrementally())
+            build(bodies);
     }
 
-    private Node root;
-    private final class Node {
-        private final NodeInfo info;         // Associated data
-        private Node NW, NE, SE, SW;         // Four subtrees
-        Node(NodeInfo info) {
-            this.info = info;
+    private boolean updateIncrementally () {
+        int numBodies = bodies.getNumBodies();
+        int maxMoved = (int) (rebuildThreshold * numBodies), moved = 0;
+        int nodesBefore = numNodes.get();
+
+        for(int body = 0; body < numBodies; body++) {
+            double x = bodies.x[body], y = bodies.y[body];
+            if(contains(leafOf[body], x, y)) {
+                newLeafOf[body] = leafOf[body];
+                continue;
+            }
+
+            if(++moved > maxMoved)
+                return false;
+            newLeafOf[body] = findOrAddLeaf(MortonSort.encode(x, y));
+            if(newLeafOf[body] == EMPTY)
+                return false;
+        }
+        if(moved == 0)
+            return true;
+
+        // New leaves were added, so the Morton order of the leaves is collected again.
+        if(numNodes.get() != nodesBefore) {
+            numLeaves = 0;
+            collectLeaves(root);
         }
+
+        // Counting sort of the bodies by leaf. Leaves may lose all their bodies, but not grow much.
+        for(int k = 0; k < numLeaves; k++)
+            leafCursor[leafOrder[k]] = 0;
+        for(int body = 0; body < numBodies; body++)
+            leafCursor[newLeafOf[body]]++;
+        for(int k = 0; k < numLeaves; k++) {
+            int leaf = leafOrder[k];
+            if(leafCursor[leaf] > Math.max(2 * leafCapacity, bodyEnd[leaf] - bodyStart[leaf]))
+                return false;
+        }
+
+        int position = 0;
+        for(int k = 0; k < numLeaves; k++) {
+            int leaf = leafOrder[k];
+            bodyStart[leaf] = position;
+            position += leafCursor[leaf];
+            bodyEnd[leaf] = position;
+            leafCursor[leaf] = bodyStart[leaf];
+        }
+        for(int body = 0; body < numBodies; body++)
+            order[leafCursor[newLeafOf[body]]++] = body;
+
+        bodies.permute(order);
+        for(int body = 0; body < numBodies; body++)
+            leafOf[body] = newLeafOf[order[body]];
+        updateRanges(root);
+        return true;
+    }
+
+    private boolean contains (int node, double x, double y) {
+        return minX[node] <= x && x <= maxX[node] && minY[node] <= y && y <= maxY[node];
+    }
+
+    private boolean containsCode (int node, long code) {
+        return code >>> (2 * (MortonSort.MAX_DEPTH - level[node])) == prefix[node];
+    }
+
+    // Child quadrant of node holding the Morton code.
+    private int quadrantOf (int node, long code) {
+        return (int) (code >>> (2 * (MortonSort.MAX_DEPTH - 1 - level[node]))) & 3;
     }
 
     /**
-     * Inserts a node in the tree.
-     * @param nodeInfo Info of node to be inserted.
+     * Leaf whose cell holds the Morton code. If the code falls in an empty quadrant, a leaf is added
+     * there; if it falls in a quadrant whose node has a smaller cell, a node is inserted above it for
+     * the deepest cell holding both, as the build would have done.
+     * @return The leaf, or EMPTY if the code is outside the root or there is no room for new nodes.
      */
-    private void insert(NodeInfo nodeInfo) {
-        root = insert(root, new Node(nodeInfo));
+    private int findOrAddLeaf (long code) {
+        int node = root;
+        if(!containsCode(node, code))
+            return EMPTY;
+
+        while(!leaf[node]) {
+            int quadrant = quadrantOf(node, code);
+            int child = children[4 * node + quadrant];
+
+            if(child == EMPTY) {
+                int newLeaf = addNode(true, code, level[node] + 1);
+                if(newLeaf != EMPTY) {
+                    children[4 * node + quadrant] = newLeaf;
+                    parent[newLeaf] = node;
+                }
+                return newLeaf;
+            }
+
+            if(!containsCode(child, code)) {
+                // Deepest level whose cell holds both the code and the child's cell.
+                long difference = (code >>> (2 * (MortonSort.MAX_DEPTH - level[child]))) ^ prefix[child];
+                int commonLevel = (2 * level[child] - (64 - Long.numberOfLeadingZeros(difference))) / 2;
+
+                int split = addNode(false, code, commonLevel);
+                int newLeaf = split == EMPTY ? EMPTY : addNode(true, code, commonLevel + 1);
+                if(newLeaf == EMPTY)
+                    return EMPTY;
+
+                long childCode = prefix[child] << (2 * (MortonSort.MAX_DEPTH - level[child]));
+                children[4 * split + quadrantOf(split, childCode)] = child;
+                children[4 * split + quadrantOf(split, code)] = newLeaf;
+                children[4 * node + quadrant] = split;
+                parent[child] = parent[newLeaf] = split;
+                parent[split] = node;
+                return newLeaf;
+            }
+
+            node = child;
+        }
+        return node;
+    }
+
+    // New node without children for the cell at the given level holding the code, or EMPTY if the arrays are full.
+    private int addNode (boolean isLeaf, long code, int level) {
+        int node = numNodes.getAndIncrement();
+        if(node >= leaf.length)
+            return EMPTY;
+
+        leaf[node] = isLeaf;
+        bodyStart[node] = bodyEnd[node] = 0;
+        setCell(node, code, level);
+        for(int quadrant = 0; quadrant < 4; quadrant++)
+            children[4 * node + quadrant] = EMPTY;
+        return node;
+    }
+
+    // Appends the leaves under node to leafOrder, in Morton order.
+    private void collectLeaves (int node) {
+        if(leaf[node]) {
+            leafOrder[numLeaves++] = node;
+            return;
+        }
+        for(int quadrant = 0; quadrant < 4; quadrant++) {
+            int child = children[4 * node + quadrant];
+            if(child != EMPTY)
+                collectLeaves(child);
+        }
+    }
+
+    // The bodies of an internal node go from the first body of its first child to the last of its last child.
+    private void updateRanges (int node) {
+        if(leaf[node])
+            return;
+
+        int start = Integer.MAX_VALUE, end = Integer.MIN_VALUE;
+        for(int quadrant = 0; quadrant < 4; quadrant++) {
+            int child = children[4 * node + quadrant];
+            if(child == EMPTY)
+                continue;
+            updateRanges(child);
+            start = Math.min(start, bodyStart[child]);
+            end = Math.max(end, bodyEnd[child]);
+        }
+        bodyStart[node] = start;
+        bodyEnd[node] = end;
+    }
+
+    private final class BuildTask extends RecursiveAction {
+        private final int node, from, to, level;
+
+        BuildTask (int node, int from, int to, int level) {
+            this.node = node;
+            this.from = from;
+            this.to = to;
+            this.level = level;
+        }
+
+        @Override
+        protected void compute () {
+            buildSubtree(node, from, to, level, true);
+        }
     }
 
     /**
-     * Recursively inserts a node in the tree.
-     * @param parent Parent of {@code child}
-     * @param child Node to be inserted
-     * @return Returns root of the tree
+     * Builds the subtree of node, which holds the sorted bodies [from, to).
+     * @param level    Depth of the cell of node inside its parent's cell (0 for the whole grid).
+     * @param parallel Whether big child subtrees may be built by other threads.
      */
-    private Node insert(Node parent, Node child) {
+    private void buildSubtree (int node, int from, int to, int level, boolean parallel) {
+
+        bodyStart[node] = from;
+        bodyEnd[node] = to;
+
+        long first = mortonSort.getCode(from);
+        long last = mortonSort.getCode(to - 1);
+
+        // Few bodies, or bodies that can't be told apart at the deepest level, make a leaf.
+        if(to - from <= leafCapacity || first == last) {
+            leaf[node] = true;
+            setCell(node, first, level);
+            for(int quadrant = 0; quadrant < 4; quadrant++)
+                children[4 * node + quadrant] = EMPTY;
+            for(int body = from; body < to; body++)
+                leafOf[body] = node;
+            return;
+        }
 
-        // Note that "nodeInfo" is the information of the node to be inserted.
-        // "parent" is the parent node of the node to be inserted.
+        // The codes are sorted, so the first and last ones share the longest prefix of the range.
+        // The cell of node is the one given by that prefix, and its children split at the next digit.
+        int splitLevel = (Long.numberOfLeadingZeros(first ^ last) - (64 - 2 * MortonSort.MAX_DEPTH)) / 2;
+        int shift = 2 * (MortonSort.MAX_DEPTH - 1 - splitLevel);
+        leaf[node] = false;
+        setCell(node, first, splitLevel);
+
+        // Children in Morton order: SW, SE, NW, NE.
+        int startSE = firstWithDigit(from, to, shift, 1);
+        int startNW = firstWithDigit(startSE, to, shift, 2);
+        int startNE = firstWithDigit(startNW, to, shift, 3);
+
+        boolean fork = parallel && to - from > PARALLEL_CUTOFF;
+        ArrayList<BuildTask> tasks = fork ? new ArrayList<>(4) : null;
+        int next = numNodes.getAndAdd((from < startSE ? 1 : 0) + (startSE < startNW ? 1 : 0)
+                                      + (startNW < startNE ? 1 : 0) + (startNE < to ? 1 : 0));
+        next = addChild(node, 0, next, from, startSE, splitLevel + 1, tasks);
+        next = addChild(node, 1, next, startSE, startNW, splitLevel + 1, tasks);
+        next = addChild(node, 2, next, startNW, startNE, splitLevel + 1, tasks);
+        addChild(node, 3, next, startNE, to, splitLevel + 1, tasks);
+
+        if(fork)
+            ForkJoinTask.invokeAll(tasks);
+    }
 
-        if (parent == null) {
-            if(this.isEmpty()) // If the tree is empty.
-                child.info.setRectangle(new Rectangle(new Interval<>(X_AXIS_MIN, X_AXIS_MAX),
-                                                      new Interval<>(Y_AXIS_MIN, Y_AXIS_MAX)));
-            nodes.add(child);
+    /**
+     * Links the child of node holding the sorted bodies [from, to), if there is any, and builds it,
+     * or queues it in tasks to build it concurrently when tasks isn't null.
+     * @return Index for the next child.
+     */
+    private int addChild (int node, int quadrant, int child, int from, int to, int level, ArrayList<BuildTask> tasks) {
+        if(from == to) {
+            children[4 * node + quadrant] = EMPTY;
             return child;
         }
 
-        // Parent is not null ==> parent != first node to be inserted or quadrant.
-        child.info.setRectangle(findRectangle(parent, child));
+        children[4 * node + quadrant] = child;
+        parent[child] = node;
+        if(tasks != null)
+            tasks.add(new BuildTask(child, from, to, level));
+        else
+            buildSubtree(child, from, to, level, false);
+        return child + 1;
+    }
 
-        double childX = child.info.getNodePosition().getX();
-        double childY = child.info.getNodePosition().getY();
-        double parentX = parent.info.getNodePosition().getX();
-        double parentY = parent.info.getNodePosition().getY();
+    // First sorted body in [from, to) whose digit at shift is at least digit, by binary search.
+    private int firstWithDigit (int from, int to, int shift, int digit) {
+        int low = from, high = to;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(((mortonSort.getCode(middle) >>> shift) & 3) < digit)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
 
-        // Which quadrant does it go to?
-        if (childX < parentX && childY < parentY)
-            parent.SW = insert(parent.SW, child);
+    /* === === === === === === === === === === === === === === === === === ===
+     *  Auxiliary functions
+     * === === === === === === === === === === === === === === === === === === */
 
-        if (childX < parentX && childY >= parentY)
-            parent.NW = insert(parent.NW, child);
+    public int size () {
+        return root == EMPTY ? 0 : bodies.getNumBodies();
+    }
 
-        if (childX >= parentX && childY < parentY)
-            parent.SE = insert(parent.SE, child);
+    // Cell at the given depth holding the Morton code.
+    private void setCell (int node, long code, int level) {
+        long prefix = code >>> (2 * (MortonSort.MAX_DEPTH - level));
+        this.level[node] = level;
+        this.prefix[node] = prefix;
+        double width = (X_AXIS_MAX - X_AXIS_MIN) / (1L << level);
+        double height = (Y_AXIS_MAX - Y_AXIS_MIN) / (1L << level);
+        minX[node] = X_AXIS_MIN + MortonSort.compact(prefix) * width;
+        minY[node] = Y_AXIS_MIN + MortonSort.compact(prefix >>> 1) * height;
+        maxX[node] = minX[node] + width;
+        maxY[node] = minY[node] + height;
+    }
 
-        if (childX >= parentX && childY >= parentY)
-            parent.NE = insert(parent.NE, child);
+    // Distance from the body of particle to (x, y).
+    private double distance (int particle, double x, double y) {
+        double dx = bodies.x[particle] - x;
+        double dy = bodies.y[particle] - y;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
 
-        return parent;
+    // Adds to the force on particle, located at (px, py), the force exerted by a mass located at (x, y).
+    private void addForce (int particle, double px, double py, double x, double y, double mass) {
+
+        // Compute distance between them.
+        double dx = px - x;
+        double dy = py - y;
+        double dist = Math.sqrt(dx * dx + dy * dy);
+
+        // Compute the magnitude of the force between them.
+        double magnitude = (G * bodies.mass[particle] * mass) / (dist * dist);
+
+        // Update the force exerted on the particle, along the direction from it to the mass.
+        bodies.fx[particle] += magnitude * (x - px) / dist;
+        bodies.fy[particle] += magnitude * (y - py) / dist;
     }
 
     /* === === === === === === === === === === === === === === === === === ===
-     *  Auxiliary functions
+     *  N Body problem functions
      * === === === === === === === === === === === === === === === === === === */
 
-    private boolean isEmpty() {
-        return this.size() == 0;
+    @Override
+    public void update (BodyState bodies) {
+        updateStructure(bodies);
+        computeMassTree();
     }
 
-    public int size () {
-        return nodes.size();
+    public void computeMassTree () {
+        if(root != EMPTY)
+            pool.invoke(new MassTask(root));
     }
 
-    private Vector<Node> getChildren(Node node) {
-        Vector<Node> children = new Vector<>();
-        if(node.NW != null) children.add(node.NW);
-        if(node.NE != null) children.add(node.NE);
-        if(node.SW != null) children.add(node.SW);
-        if(node.SE != null) children.add(node.SE);
-        return children;
+    /**
+     * Updates the tree for a stage of individual timesteps without moving any body between leaves: only the
+     * cells above an advanced body are aggregated again, from the deepest one up. The rest of the bodies
+     * still move in a straight line from the position of their time, and so do the centers of mass of the
+     * cells without advanced bodies. The whole tree is aggregated on the first such stage of the run.
+     */
+    @Override
+    public void update (BodyState bodies, int[] advanced, int numAdvanced, double time) {
+        this.drifting = true;
+        this.time = time;
+        if(root == EMPTY)
+            return;
+
+        if(velocityX == null) {
+            velocityX = new double[leaf.length];
+            velocityY = new double[leaf.length];
+            pending = new int[leaf.length];
+            pendingMark = new int[leaf.length];
+            pendingByDepth = new int[leaf.length];
+            depthCount = new int[MortonSort.MAX_DEPTH + 2];
+            computeMassTree();
+            return;
+        }
+
+        // Each cell is added once, by the first advanced body under it.
+        numStages++;
+        int numPending = 0;
+        for(int k = 0; k < numAdvanced; k++) {
+            for(int node = leafOf[advanced[k]]; node != EMPTY && pendingMark[node] != numStages; node = parent[node]) {
+                pendingMark[node] = numStages;
+                pending[numPending++] = node;
+            }
+        }
+
+        // Children are deeper than their parents, so a counting sort by depth aggregates them first.
+        Arrays.fill(depthCount, 0);
+        for(int k = 0; k < numPending; k++)
+            depthCount[MortonSort.MAX_DEPTH - level[pending[k]] + 1]++;
+        for(int depth = 1; depth < depthCount.length; depth++)
+            depthCount[depth] += depthCount[depth - 1];
+        for(int k = 0; k < numPending; k++)
+            pendingByDepth[depthCount[MortonSort.MAX_DEPTH - level[pending[k]]]++] = pending[k];
+        for(int k = 0; k < numPending; k++)
+            aggregate(pendingByDepth[k]);
     }
 
-    // Calculate distance from n1 to n2 (order matters in this case because of estimation).
-    private double distance(Node n1, Node n2, boolean estimate) {
-        // Coordinate n1Pos = estimate ? n1.info.getCenterOfMass() : n1.info.getNodePosition();
-        Coordinate n2Pos = estimate ? n2.info.getCenterOfMass() : n2.info.getNodePosition();
-        return n1.info.getNodePosition().distance(n2Pos);
+    // Whether forces are computed with the bodies drifted to the time of a stage, and whether the cells keep their velocity.
+    boolean isDrifting () {return drifting;}
+    boolean hasVelocities () {return velocityX != null;}
+
+    private final class MassTask extends RecursiveAction {
+        private final int node;
+
+        MassTask (int node) {
+            this.node = node;
+        }
+
+        @Override
+        protected void compute () {
+            computeMassTree(node, true);
+        }
     }
 
-    private Coordinate computeForce (Node node1, Node node2, boolean estimate) {
-        // Get data of node2 depending on whether we're estimating or not.
-        double node2Mass = estimate ? node2.info.getAccumulatedMass() : node2.info.getNodeMass();
-        Coordinate node2Pos = estimate ? node2.info.getCenterOfMass() : node2.info.getNodePosition();
+    // Aggregates the mass and center of mass of all the bodies in the subtree of node.
+    private void computeMassTree (int node, boolean parallel) {
+
+        if(!leaf[node]) {
+            // Big subtrees aggregate their children concurrently before combining them in this node.
+            boolean forked = parallel && bodyEnd[node] - bodyStart[node] > PARALLEL_CUTOFF;
+            ArrayList<MassTask> tasks = forked ? new ArrayList<>(4) : null;
+            for(int quadrant = 0; quadrant < 4; quadrant++) {
+                int child = children[4 * node + quadrant];
+                if(child == EMPTY)
+                    continue;
+
+                if(forked)
+                    tasks.add(new MassTask(child));
+                else
+                    computeMassTree(child, false);
+            }
+            if(forked)
+                ForkJoinTask.invokeAll(tasks);
+        }
 
-        // Compute distance between the nodes.
-        double dist = distance(node1, node2, estimate);
+        aggregate(node);
+    }
 
-        // Compute the magnitude of the force between them.
-        double magnitude = (G * node1.info.getNodeMass() * node2Mass) / (dist * dist);
+    // Mass and center of mass (and quadrupole) of node, from its bodies or from its children, which are aggregated.
+    private void aggregate (int node) {
+
+        double mass = 0, momentX = 0, momentY = 0, momentumX = 0, momentumY = 0;
+
+        if(leaf[node] && velocityX == null) {
+            for(int body = bodyStart[node]; body < bodyEnd[node]; body++) {
+                mass += bodies.mass[body];
+                momentX += bodies.mass[body] * bodies.x[body];
+                momentY += bodies.mass[body] * bodies.y[body];
+            }
+        } else if(leaf[node]) {
+            // Each body is followed back along its velocity to where it was at the last full update.
+            for(int body = bodyStart[node]; body < bodyEnd[node]; body++) {
+                mass += bodies.mass[body];
+                momentX += bodies.mass[body] * (bodies.x[body] - bodies.vx[body] * (bodies.time[body] - epoch));
+                momentY += bodies.mass[body] * (bodies.y[body] - bodies.vy[body] * (bodies.time[body] - epoch));
+                momentumX += bodies.mass[body] * bodies.vx[body];
+                momentumY += bodies.mass[body] * bodies.vy[body];
+            }
+        } else {
+            for(int quadrant = 0; quadrant < 4; quadrant++) {
+                int child = children[4 * node + quadrant];
+                if(child == EMPTY)
+                    continue;
+
+                mass += accumulatedMass[child];
+                momentX += accumulatedMass[child] * centerOfMassX[child];
+                momentY += accumulatedMass[child] * centerOfMassY[child];
+                if(velocityX != null) {
+                    momentumX += accumulatedMass[child] * velocityX[child];
+                    momentumY += accumulatedMass[child] * velocityY[child];
+                }
+            }
+        }
 
-        // Compute the direction of the force.
-        Coordinate direction = new Coordinate(node2Pos.getX() - node1.info.getNodePosition().getX(),
-                                              node2Pos.getY() - node1.info.getNodePosition().getY());
+        accumulatedMass[node] = mass;
+        centerOfMassX[node] = mass != 0 ? momentX / mass : (minX[node] + maxX[node]) / 2;
+        centerOfMassY[node] = mass != 0 ? momentY / mass : (minY[node] + maxY[node]) / 2;
+        if(velocityX != null) {
+            velocityX[node] = mass != 0 ? momentumX / mass : 0;
+            velocityY[node] = mass != 0 ? momentumY / mass : 0;
+        }
+
+        if(quadrupole)
+            computeQuadrupole(node);
+    }
 
-        // Update the force exerted on each body.
-        double forceX = magnitude * direction.getX() / dist;
-        double forceY = magnitude * direction.getY() / dist;
+    /*
+     * Q = sum of m * (3 d d^T - |d|^2 I) over the bodies of the subtree, with d their offset from the
+     * center of mass. Only the in-plane components are kept, as the z component of every offset is 0.
+     * Internal nodes shift the quadrupole of each child to their own center of mass.
+     * On stages of individual timesteps, the offsets are those at the time of the stage, and the quadrupole
+     * is kept as the bodies drift until the cell is aggregated again.
+     */
+    private void computeQuadrupole (int node) {
+        double xx = 0, xy = 0, yy = 0;
+        double centerX = driftedCenterX(node), centerY = driftedCenterY(node);
+
+        if(leaf[node]) {
+            for(int body = bodyStart[node]; body < bodyEnd[node]; body++) {
+                double dx = driftedX(body) - centerX;
+                double dy = driftedY(body) - centerY;
+                xx += bodies.mass[body] * (2 * dx * dx - dy * dy);
+                xy += bodies.mass[body] * 3 * dx * dy;
+                yy += bodies.mass[body] * (2 * dy * dy - dx * dx);
+            }
+        } else {
+            for(int quadrant = 0; quadrant < 4; quadrant++) {
+                int child = children[4 * node + quadrant];
+                if(child == EMPTY)
+                    continue;
+
+                double dx = driftedCenterX(child) - centerX;
+                double dy = driftedCenterY(child) - centerY;
+                xx += quadrupoleXX[child] + accumulatedMass[child] * (2 * dx * dx - dy * dy);
+                xy += quadrupoleXY[child] + accumulatedMass[child] * 3 * dx * dy;
+                yy += quadrupoleYY[child] + accumulatedMass[child] * (2 * dy * dy - dx * dx);
+            }
+        }
 
-        return new Coordinate(forceX, forceY);
+        quadrupoleXX[node] = xx;
+        quadrupoleXY[node] = xy;
+        quadrupoleYY[node] = yy;
     }
 
+    // Position of a body and center of mass of a node at the time of the stage.
+    private double driftedX (int body) {return velocityX == null ? bodies.x[body] : bodies.x[body] + bodies.vx[body] * (time - bodies.time[body]);}
+    private double driftedY (int body) {return velocityX == null ? bodies.y[body] : bodies.y[body] + bodies.vy[body] * (time - bodies.time[body]);}
+    private double driftedCenterX (int node) {return velocityX == null ? centerOfMassX[node] : centerOfMassX[node] + velocityX[node] * (time - epoch);}
+    private double driftedCenterY (int node) {return velocityX == null ? centerOfMassY[node] : centerOfMassY[node] + velocityY[node] * (time - epoch);}
+
     /**
-     * Finds the rectangle in which {@code child} is contained.
-     * @param parent Parent node of {@code child}
-     * @param child  Node for the rectangle search
-     * @return Rectangle in which {@code child} is contained.
+     * Computes the gravitational force on a body due to every other body, and stores it in
+     * {@code fx} and {@code fy} of the body store. Only that body's force is written.
+     * @param body Body whose force is computed.
      */
-    private Rectangle findRectangle (Node parent, Node child) {
+    @Override
+    public void computeForceOn (int body) {
+        bodies.fx[body] = 0;
+        bodies.fy[body] = 0;
+        if(drifting)
+            bodies.interactions[body] = computeDriftedForceTree(body, driftedX(body), driftedY(body), root);
+        else
+            bodies.interactions[body] = computeForceTree(body, root);
+    }
+
+    // Adds the force on particle due to the monopole and quadrupole of node, with r from its center of mass to the particle:
+    // F = G * m * (-M r / r^3 + Q r / r^5 - 5/2 (r^T Q r) r / r^7).
+    private void addMultipoleForce (int particle, double rx, double ry, int node) {
+        double r2 = rx * rx + ry * ry;
+        double inverse = 1 / r2;
+        double inverse3 = inverse / Math.sqrt(r2);
+        double inverse5 = inverse3 * inverse;
+
+        double qrx = quadrupoleXX[node] * rx + quadrupoleXY[node] * ry;
+        double qry = quadrupoleXY[node] * rx + quadrupoleYY[node] * ry;
+        double radial = -accumulatedMass[node] * inverse3 - 2.5 * (rx * qrx + ry * qry) * inverse5 * inverse;
+
+        double scale = G * bodies.mass[particle];
+        bodies.fx[particle] += scale * (radial * rx + qrx * inverse5);
+        bodies.fy[particle] += scale * (radial * ry + qry * inverse5);
+    }
+
+    // Adds the force on particle due to the sorted bodies [from, to) of a leaf, by direct summation.
+    // Leaf bodies are contiguous, so this is a plain loop over the arrays with the sums kept in locals.
+    private void addLeafForces (int particle, int from, int to) {
+        double[] x = bodies.x, y = bodies.y, mass = bodies.mass;
+        double xi = x[particle], yi = y[particle];
+        double forceX = 0, forceY = 0;
+
+        for(int body = from; body < to; body++) {
+            double directionX = x[body] - xi;
+            double directionY = y[body] - yi;
+            double distanceSquared = directionX * directionX + directionY * directionY;
+
+            // The particle itself (and any body on top of it) adds nothing.
+            if(distanceSquared == 0)
+                continue;
+
+            double scale = mass[body] / (distanceSquared * Math.sqrt(distanceSquared));
+            forceX += scale * directionX;
+            forceY += scale * directionY;
+        }
 
-        Interval<Double> xInterval, yInterval;
+        bodies.fx[particle] += G * mass[particle] * forceX;
+        bodies.fy[particle] += G * mass[particle] * forceY;
+    }
 
-        Rectangle parentRectangle = parent.info.getRectangle();
-        double childX = child.info.getNodePosition().getX();
-        double childY = child.info.getNodePosition().getY();
-        double parentX = parent.info.getNodePosition().getX();
-        double parentY = parent.info.getNodePosition().getY();
+    // Adds the force on "particle" due to all particles in the box at node.
+    // Returns the number of bodies and cells that were added.
+    private int computeForceTree (int particle, int node) {
 
-        double bottomX = parentRectangle.intervalX.min();
-        double topX = parentRectangle.intervalX.max();
-        double middleX = (bottomX + topX) / 2;
-        double bottomY = parentRectangle.intervalY.min();
-        double topY = parentRectangle.intervalY.max();
-        double middleY = (bottomY + topY) / 2;
+        if(leaf[node]) {
+            addLeafForces(particle, bodyStart[node], bodyEnd[node]);
+            return bodyEnd[node] - bodyStart[node];
+        }
 
-        // Set x-axis of rectangle.
-        if(childX < parentX) xInterval = new Interval<>(bottomX, middleX);
-        else xInterval = new Interval<>(middleX, topX);
-        // Set y-axis of rectangle.
-        if(childY < parentY) yInterval = new Interval<>(bottomY, middleY);
-        else yInterval = new Interval<>(middleY, topY);
+        // Boxes containing the particle itself are never approximated.
+        boolean onPath = bodyStart[node] <= particle && particle < bodyEnd[node];
+        if(!onPath) {
+            // node doesn't contain the particle ==> distance > 0
+            // The criterion compares the size of the cell being approximated with its distance.
+            double distance = distance(particle, centerOfMassX[node], centerOfMassY[node]);
+            double cellWidth = Math.max(maxX[node] - minX[node], maxY[node] - minY[node]);
+
+            if(cellWidth < theta * distance) {
+                if(quadrupole)
+                    addMultipoleForce(particle, bodies.x[particle] - centerOfMassX[node],
+                                      bodies.y[particle] - centerOfMassY[node], node);
+                else
+                    addForce(particle, bodies.x[particle], bodies.y[particle],
+                             centerOfMassX[node], centerOfMassY[node], accumulatedMass[node]);
+                return 1;
+            }
+        }
 
-        return new Rectangle(xInterval, yInterval);
+        int interactions = 0;
+        for(int quadrant = 0; quadrant < 4; quadrant++) {
+            int child = children[4 * node + quadrant];
+            if(child != EMPTY)
+                interactions += computeForceTree(particle, child);
+        }
+        return interactions;
     }
 
     /* === === === === === === === === === === === === === === === === === ===
-     *  N Body problem functions
+     *  Drifted traversal, for stages of individual timesteps
      * === === === === === === === === === === === === === === === === === === */
 
-    public void computeMassTree () {
-        // System.out.println("positions before computeMassTree: " + this.positions);
-        computeMassTree(root);
-        // System.out.println("positions after computeMassTree: " + this.positions);
-    }
+    // As computeForceTree, with the particle at (px, py) and every body and center of mass drifted to the time of the stage.
+    private int computeDriftedForceTree (int particle, double px, double py, int node) {
+
+        if(leaf[node]) {
+            addDriftedLeafForces(particle, px, py, bodyStart[node], bodyEnd[node]);
+            return bodyEnd[node] - bodyStart[node];
+        }
 
-    private NodeInfo computeMassTree (Node node) {
+        // The cells keep their bounds, which the bodies may have left since the last rebuild by up to a timestep of motion.
+        boolean onPath = bodyStart[node] <= particle && particle < bodyEnd[node];
+        if(!onPath) {
+            double centerX = driftedCenterX(node), centerY = driftedCenterY(node);
+            double rx = px - centerX, ry = py - centerY;
+            double distance = Math.sqrt(rx * rx + ry * ry);
+            double cellWidth = Math.max(maxX[node] - minX[node], maxY[node] - minY[node]);
+
+            if(cellWidth < theta * distance) {
+                if(quadrupole)
+                    addMultipoleForce(particle, rx, ry, node);
+                else
+                    addForce(particle, px, py, centerX, centerY, accumulatedMass[node]);
+                return 1;
+            }
+        }
 
-        Vector<Node> children = getChildren(node);
+        int interactions = 0;
+        for(int quadrant = 0; quadrant < 4; quadrant++) {
+            int child = children[4 * node + quadrant];
+            if(child != EMPTY)
+                interactions += computeDriftedForceTree(particle, px, py, child);
+        }
+        return interactions;
+    }
 
-        // Case of a single body with no children.
-        if(children.isEmpty())
-            return node.info;
+    // As addLeafForces, with the bodies of the leaf drifted to the time of the stage as they are read.
+    private void addDriftedLeafForces (int particle, double px, double py, int from, int to) {
+        double[] x = bodies.x, y = bodies.y, vx = bodies.vx, vy = bodies.vy, mass = bodies.mass, since = bodies.time;
+        double forceX = 0, forceY = 0;
+
+        for(int body = from; body < to; body++) {
+            double directionX = x[body] + vx[body] * (time - since[body]) - px;
+            double directionY = y[body] + vy[body] * (time - since[body]) - py;
+            double distanceSquared = directionX * directionX + directionY * directionY;
+            if(distanceSquared == 0)
+                continue;
+
+            double scale = mass[body] / (distanceSquared * Math.sqrt(distanceSquared));
+            forceX += scale * directionX;
+            forceY += scale * directionY;
+        }
 
-        double accumulatedMass = 0;
-        Coordinate centerOfMass = new Coordinate(0, 0);
+        bodies.fx[particle] += G * mass[particle] * forceX;
+        bodies.fy[particle] += G * mass[particle] * forceY;
+    }
 
-        for(Node child : children) {
-            // Compute and get info of child.
-            NodeInfo childInfo = computeMassTree(child);
-            double childBodyMass = childInfo.getAccumulatedMass();
-            Coordinate childCenterOfMass = new Coordinate(childInfo.getCenterOfMass());
+    /* === === === === === === === === === === === === === === === === === ===
+     *  Grouped traversal
+     * === === === === === === === === === === === === === === === === === === */
 
-            // Update information for node.
-            accumulatedMass += childBodyMass;
-            centerOfMass.add(childCenterOfMass);
+    // Cells accepted and leaves to sum directly for a group of bodies, reused by each thread.
+    private static final class InteractionList {
+        int numCells, numLeaves;
+        double[] cellX = new double[64], cellY = new double[64], cellMass = new double[64];
+        double[] cellXX = new double[64], cellXY = new double[64], cellYY = new double[64];
+        int[] leaves = new int[64];
+
+        void addCell (double x, double y, double mass, double xx, double xy, double yy) {
+            if(numCells == cellX.length) {
+                int length = 2 * numCells;
+                cellX = Arrays.copyOf(cellX, length);
+                cellY = Arrays.copyOf(cellY, length);
+                cellMass = Arrays.copyOf(cellMass, length);
+                cellXX = Arrays.copyOf(cellXX, length);
+                cellXY = Arrays.copyOf(cellXY, length);
+                cellYY = Arrays.copyOf(cellYY, length);
+            }
+            cellX[numCells] = x;
+            cellY[numCells] = y;
+            cellMass[numCells] = mass;
+            cellXX[numCells] = xx;
+            cellXY[numCells] = xy;
+            cellYY[numCells] = yy;
+            numCells++;
         }
 
-        // Center of mass calculation.
-        if(accumulatedMass != 0) // The children might all be leaves.
-            centerOfMass.divide(accumulatedMass);
+        void addLeaf (int leaf) {
+            if(numLeaves == leaves.length)
+                leaves = Arrays.copyOf(leaves, 2 * numLeaves);
+            leaves[numLeaves++] = leaf;
+        }
+    }
 
-        // Store information in node.
-        node.info.setAccumulatedMass(accumulatedMass);
-        node.info.setCenterOfMass(centerOfMass);
+    private final ThreadLocal<InteractionList> interactionLists = ThreadLocal.withInitial(InteractionList::new);
 
-        return node.info;
+    /**
+     * Computes the forces of the sorted bodies [from, to). In grouped mode, the bodies of each leaf
+     * share a single traversal of the tree: it collects the cells that can be approximated for all of
+     * them, and the list is then applied to every body of the leaf.
+     */
+    @Override
+    public void computeForcesOn (int from, int to) {
+        // Groups are bounded with the positions in the store, which are not those of a stage where bodies drift.
+        if(!groupTraversal || drifting) {
+            ForceEngine.super.computeForcesOn(from, to);
+            return;
+        }
+        if(root != EMPTY && from < to)
+            computeGroupForces(root, from, to, interactionLists.get());
     }
 
-    public Coordinate computeForceOn (int node) {
-        return computeForceTree(nodes.get(node), root);
-    }
+    // Finds the leaves holding bodies of [from, to) under node.
+    private void computeGroupForces (int node, int from, int to, InteractionList list) {
+        if(bodyEnd[node] <= from || to <= bodyStart[node] || bodyStart[node] == bodyEnd[node])
+            return;
+
+        if(!leaf[node]) {
+            for(int quadrant = 0; quadrant < 4; quadrant++) {
+                int child = children[4 * node + quadrant];
+                if(child != EMPTY)
+                    computeGroupForces(child, from, to, list);
+            }
+            return;
+        }
 
-    // Compute gravitational force on node "particle" due to all particles in the box at node.
-    private Coordinate computeForceTree(Node particle, Node node) {
+        // Bounding box of the whole leaf, so the list is valid for every body in it.
+        double groupMinX = Double.MAX_VALUE, groupMaxX = -Double.MAX_VALUE;
+        double groupMinY = Double.MAX_VALUE, groupMaxY = -Double.MAX_VALUE;
+        for(int body = bodyStart[node]; body < bodyEnd[node]; body++) {
+            groupMinX = Math.min(groupMinX, bodies.x[body]);
+            groupMaxX = Math.max(groupMaxX, bodies.x[body]);
+            groupMinY = Math.min(groupMinY, bodies.y[body]);
+            groupMaxY = Math.max(groupMaxY, bodies.y[body]);
+        }
 
-        Vector<Node> children = getChildren(node);
-        Coordinate force = new Coordinate(0, 0);
+        list.numCells = 0;
+        list.numLeaves = 0;
+        collectInteractions(root, node, groupMinX, groupMaxX, groupMinY, groupMaxY, list);
 
-        if(particle != node) {
-            if(children.isEmpty())
-                return this.computeForce(particle, node, false);
+        int interactions = list.numCells;
+        for(int k = 0; k < list.numLeaves; k++)
+            interactions += bodyEnd[list.leaves[k]] - bodyStart[list.leaves[k]];
 
-            // particle != node ==> distance > 0
-            double distance = distance(particle, node, false);
-            double quadrantWidth = particle.info.getRectangle().getWidth();
+        for(int body = Math.max(from, bodyStart[node]); body < Math.min(to, bodyEnd[node]); body++) {
+            applyInteractions(body, list);
+            bodies.interactions[body] = interactions;
+        }
+    }
 
-            if(quadrantWidth/distance < THETA)
-                return computeForce(particle, node, true);
+    /**
+     * Adds to list the interactions of the bodies of group, inside the given box, with the bodies under node.
+     * A cell is approximated when it passes the opening criterion for the closest point of the box,
+     * and therefore for every body of the group.
+     */
+    private void collectInteractions (int node, int group, double groupMinX, double groupMaxX,
+                                      double groupMinY, double groupMaxY, InteractionList list) {
+        if(leaf[node]) {
+            list.addLeaf(node);
+            return;
         }
 
-        for(Node child : children)
-            force.add(computeForceTree(particle, child));
+        // Cells containing the group itself are never approximated.
+        boolean onPath = bodyStart[node] <= bodyStart[group] && bodyEnd[group] <= bodyEnd[node];
+        if(!onPath) {
+            double dx = Math.max(0, Math.max(groupMinX - centerOfMassX[node], centerOfMassX[node] - groupMaxX));
+            double dy = Math.max(0, Math.max(groupMinY - centerOfMassY[node], centerOfMassY[node] - groupMaxY));
+            double cellWidth = Math.max(maxX[node] - minX[node], maxY[node] - minY[node]);
+
+            if(cellWidth * cellWidth < theta * theta * (dx * dx + dy * dy)) {
+                if(quadrupole)
+                    list.addCell(centerOfMassX[node], centerOfMassY[node], accumulatedMass[node],
+                                 quadrupoleXX[node], quadrupoleXY[node], quadrupoleYY[node]);
+                else
+                    list.addCell(centerOfMassX[node], centerOfMassY[node], accumulatedMass[node], 0, 0, 0);
+                return;
+            }
+        }
+
+        for(int quadrant = 0; quadrant < 4; quadrant++) {
+            int child = children[4 * node + quadrant];
+            if(child != EMPTY)
+                collectInteractions(child, group, groupMinX, groupMaxX, groupMinY, groupMaxY, list);
+        }
+    }
+
+    // Force on particle due to the cells and leaves of list, with plain loops over the list arrays.
+    private void applyInteractions (int particle, InteractionList list) {
+        double xi = bodies.x[particle], yi = bodies.y[particle];
+        double forceX = 0, forceY = 0;
+
+        double[] cellX = list.cellX, cellY = list.cellY, cellMass = list.cellMass;
+        if(quadrupole) {
+            double[] cellXX = list.cellXX, cellXY = list.cellXY, cellYY = list.cellYY;
+            for(int k = 0; k < list.numCells; k++) {
+                double rx = xi - cellX[k];
+                double ry = yi - cellY[k];
+                double r2 = rx * rx + ry * ry;
+                double inverse = 1 / r2;
+                double inverse3 = inverse / Math.sqrt(r2);
+                double inverse5 = inverse3 * inverse;
+
+                double qrx = cellXX[k] * rx + cellXY[k] * ry;
+                double qry = cellXY[k] * rx + cellYY[k] * ry;
+                double radial = -cellMass[k] * inverse3 - 2.5 * (rx * qrx + ry * qry) * inverse5 * inverse;
+                forceX += radial * rx + qrx * inverse5;
+                forceY += radial * ry + qry * inverse5;
+            }
+        } else {
+            for(int k = 0; k < list.numCells; k++) {
+                double directionX = cellX[k] - xi;
+                double directionY = cellY[k] - yi;
+                double distanceSquared = directionX * directionX + directionY * directionY;
+                double scale = cellMass[k] / (distanceSquared * Math.sqrt(distanceSquared));
+                forceX += scale * directionX;
+                forceY += scale * directionY;
+            }
+        }
+
+        double[] x = bodies.x, y = bodies.y, mass = bodies.mass;
+        for(int k = 0; k < list.numLeaves; k++) {
+            int leaf = list.leaves[k];
+            for(int body = bodyStart[leaf]; body < bodyEnd[leaf]; body++) {
+                double directionX = x[body] - xi;
+                double directionY = y[body] - yi;
+                double distanceSquared = directionX * directionX + directionY * directionY;
+                if(distanceSquared == 0)
+                    continue;
+
+                double scale = mass[body] / (distanceSquared * Math.sqrt(distanceSquared));
+                forceX += scale * directionX;
+                forceY += scale * directionY;
+            }
+        }
 
-        return force;
+        bodies.fx[particle] = G * mass[particle] * forceX;
+        bodies.fy[particle] = G * mass[particle] * forceY;
     }
 }
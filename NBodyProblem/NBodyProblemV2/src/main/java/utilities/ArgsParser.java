@@ -1,5 +1,9 @@
 package utilities;
 
+import space.MultipoleTree;
+import space.QuadTree;
+
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -12,6 +16,25 @@ public class ArgsParser {
     private static int start;
     private static int numWorkers;
     private static int report;
+    private static String format;
+    private static int leafCapacity;
+    private static Double theta;
+    private static double[] sweep;
+    private static String engine;
+    private static Integer order;
+    private static int quadrupole;
+    private static String traversal;
+    private static Double incremental;
+    private static String balance;
+    private static String integrator;
+    private static int levels;
+    private static int checkpoint;
+    private static Checkpoint resume;
+    private static String metrics;
+    private static int stream;
+
+    // Finest timestep is DT / 2^(MAX_LEVELS - 1).
+    private static final int MAX_LEVELS = 16;
 
     private static final HashSet<String> ALLOWED_PARAMETERS = new HashSet<>(Arrays.asList(
             "bodies",
@@ -19,15 +42,89 @@ public class ArgsParser {
             "timestep",
             "start",
             "workers",
-            "report"
+            "report",
+            "format",
+            "leaf",
+            "theta",
+            "sweep",
+            "engine",
+            "order",
+            "quadrupole",
+            "traversal",
+            "incremental",
+            "balance",
+            "integrator",
+            "levels",
+            "checkpoint",
+            "resume",
+            "metrics",
+            "stream"
+    ));
+
+    // Parameters of the run stored in a checkpoint, which cannot be changed when resuming from it.
+    private static final HashSet<String> CHECKPOINT_PARAMETERS = new HashSet<>(Arrays.asList(
+            "bodies",
+            "steps",
+            "timestep",
+            "start",
+            "workers",
+            "integrator",
+            "levels"
+    ));
+
+    // Parameters of a single run, which the runs of a sweep do not take.
+    private static final HashSet<String> SINGLE_RUN_PARAMETERS = new HashSet<>(Arrays.asList(
+            "theta",
+            "report",
+            "format",
+            "checkpoint",
+            "resume",
+            "metrics",
+            "stream"
+    ));
+
+    private static final HashSet<String> METRICS = new HashSet<>(Arrays.asList(
+            "off",
+            "json",
+            "csv"
+    ));
+
+    private static final HashSet<String> FORMATS = new HashSet<>(Arrays.asList(
+            "xlsx",
+            "columnar"
+    ));
+
+    private static final HashSet<String> ENGINES = new HashSet<>(Arrays.asList(
+            "bh",
+            "fmm"
+    ));
+
+    private static final HashSet<String> TRAVERSALS = new HashSet<>(Arrays.asList(
+            "body",
+            "group"
+    ));
+
+    private static final HashSet<String> BALANCES = new HashSet<>(Arrays.asList(
+            "static",
+            "costzones"
+    ));
+
+    private static final HashSet<String> INTEGRATORS = new HashSet<>(Arrays.asList(
+            "euler",
+            "leapfrog",
+            "yoshida4",
+            "rk4"
     ));
 
 
     private static void usage (String tag) {
         System.out.println(tag);
         System.out.println("Usage: java Main --bodies <number> --steps <number> [options]");
+        System.out.println("       java Main --resume <checkpoint file> [options]");
         System.out.println("Options may be:");
-        System.out.println("--timestep <number>\n--start <number>\n--workers <number>\n--report <0/1>");
+        System.out.println("--timestep <number>\n--start <number>\n--workers <number>\n--report <0/1>\n--format <xlsx/columnar>\n--leaf <number>\n--theta <number>\n--sweep <theta,theta,...>\n--engine <bh/fmm>\n--order <number>\n--quadrupole <0/1>\n--traversal <body/group>\n--incremental <fraction>\n--balance <static/costzones>\n--integrator <euler/leapfrog/yoshida4/rk4>\n--levels <number>\n--checkpoint <steps>\n--resume <file>\n--metrics <off/json/csv>\n--stream <steps>");
+        System.out.println("With --format columnar, the results file holds every step and the trajectory file is deleted at the end;\n" +
+                           "a run that times out keeps it, to be resumed.");
         System.exit(1);
     }
 
@@ -48,28 +145,168 @@ public class ArgsParser {
         if(report != 0 && report != 1)
             usage("Parameter \"report\" must be 0 or 1");
 
+        if(!FORMATS.contains(format))
+            usage("Parameter \"format\" must be one of " + FORMATS);
+
         if((numSteps - start) % DT != 0)
             usage("(steps - start) % DT must be 0");
+
+        if(leafCapacity <= 0)
+            usage("Parameter \"leaf\" must be greater than 0");
+
+        if(theta < 0)
+            usage("Parameter \"theta\" must be nonnegative");
+
+        if(sweep != null && Arrays.stream(sweep).anyMatch(value -> value < 0))
+            usage("Values of parameter \"sweep\" must be nonnegative");
+
+        if(!ENGINES.contains(engine))
+            usage("Parameter \"engine\" must be one of " + ENGINES);
+
+        // Order 0 expansions have no gradient, so they would leave out the whole far field.
+        if(order != null && order < 1)
+            usage("Parameter \"order\" must be at least 1");
+
+        // Each engine only takes its own options.
+        if(order != null && !engine.equals("fmm"))
+            usage("Parameter \"order\" needs the fmm engine");
+
+        if((quadrupole == 1 || traversal.equals("group")) && !engine.equals("bh"))
+            usage("Parameters \"quadrupole\" and \"traversal\" need the bh engine");
+
+        if(quadrupole != 0 && quadrupole != 1)
+            usage("Parameter \"quadrupole\" must be 0 or 1");
+
+        if(!TRAVERSALS.contains(traversal))
+            usage("Parameter \"traversal\" must be one of " + TRAVERSALS);
+
+        if(incremental < 0 || incremental > 1)
+            usage("Parameter \"incremental\" must be between 0 and 1");
+
+        if(!BALANCES.contains(balance))
+            usage("Parameter \"balance\" must be one of " + BALANCES);
+
+        if(!INTEGRATORS.contains(integrator))
+            usage("Parameter \"integrator\" must be one of " + INTEGRATORS);
+
+        if(levels < 1 || levels > MAX_LEVELS)
+            usage("Parameter \"levels\" must be between 1 and " + MAX_LEVELS);
+
+        if(levels > 1 && !integrator.equals("leapfrog"))
+            usage("Individual timesteps (\"levels\" greater than 1) need the leapfrog integrator");
+
+        if(checkpoint < 0)
+            usage("Parameter \"checkpoint\" must be nonnegative");
+
+        if(!METRICS.contains(metrics))
+            usage("Parameter \"metrics\" must be one of " + METRICS);
+
+        if(stream < 0)
+            usage("Parameter \"stream\" must be nonnegative");
+
+        if(stream > 0 && metrics.equals("off"))
+            usage("Parameter \"stream\" needs \"metrics\" to be json or csv");
+    }
+
+    private static Integer parseInteger (HashMap<String, String> parameters, String key, Integer defaultValue) {
+        if(!parameters.containsKey(key))
+            return defaultValue;
+        try {
+            return Integer.parseInt(parameters.get(key));
+        } catch (NumberFormatException e) {
+            usage("Parameter \"" + key + "\" must be an integer");
+            return null;
+        }
+    }
+
+    private static Double parseDouble (HashMap<String, String> parameters, String key, Double defaultValue) {
+        if(!parameters.containsKey(key))
+            return defaultValue;
+        try {
+            return Double.parseDouble(parameters.get(key));
+        } catch (NumberFormatException e) {
+            usage("Parameter \"" + key + "\" must be a number");
+            return null;
+        }
+    }
+
+    // Comma separated list of numbers.
+    private static double[] parseDoubles (HashMap<String, String> parameters, String key) {
+        if(!parameters.containsKey(key))
+            return null;
+        try {
+            return Arrays.stream(parameters.get(key).split(",")).mapToDouble(Double::parseDouble).toArray();
+        } catch (NumberFormatException e) {
+            usage("Parameter \"" + key + "\" must be a comma separated list of numbers");
+            return null;
+        }
+    }
+
+    // Takes the parameters of the run from the checkpoint to resume.
+    private static void readCheckpoint (HashMap<String, String> parameters) {
+        for(String key : CHECKPOINT_PARAMETERS)
+            if(parameters.containsKey(key))
+                usage("Parameter \"" + key + "\" is taken from the checkpoint when resuming");
+
+        try {
+            resume = Checkpoint.read(parameters.get("resume"));
+        } catch (IOException e) {
+            usage("Cannot resume from \"" + parameters.get("resume") + "\": " + e.getMessage());
+        }
+
+        numBodies = resume.getNumBodies();
+        numSteps = resume.getNumSteps();
+        DT = resume.getDT();
+        start = resume.getStart();
+        numWorkers = resume.getNumWorkers();
+        integrator = resume.getIntegrator();
+        levels = resume.getLevels();
+    }
+
+    // A sweep chooses theta itself and only prints its table.
+    private static void checkSweep (HashMap<String, String> parameters) {
+        for(String key : SINGLE_RUN_PARAMETERS)
+            if(parameters.containsKey(key))
+                usage("Parameter \"" + key + "\" cannot be used with \"sweep\"");
     }
 
     public static void parseArguments (String[] args) {
 
-        if (args.length < 4 || args.length > ALLOWED_PARAMETERS.size() * 2)
+        if (args.length < 2 || args.length > ALLOWED_PARAMETERS.size() * 2)
             usage("Incorrect argument size (" + args.length + ")");
 
-        HashMap<String, Integer> parameters = new HashMap<>();
+        HashMap<String, String> parameters = new HashMap<>();
         for (int i = 0; i < args.length - 1; i += 2) {
             String key = args[i].substring(2);
             if(!ALLOWED_PARAMETERS.contains(key)) usage("Parameter " + key + " is not valid.");
-            parameters.put(key, Integer.parseInt(args[i + 1]));
+            parameters.put(key, args[i + 1]);
         }
 
-        numBodies = parameters.get("bodies");
-        numSteps = parameters.get("steps");
-        DT = parameters.getOrDefault("timestep", 1);
-        start = parameters.getOrDefault("start", 0);
-        numWorkers = parameters.getOrDefault("workers", 1);
-        report = parameters.getOrDefault("report", 0);
+        numBodies = parseInteger(parameters, "bodies", null);
+        numSteps = parseInteger(parameters, "steps", null);
+        DT = parseInteger(parameters, "timestep", 1);
+        start = parseInteger(parameters, "start", 0);
+        numWorkers = parseInteger(parameters, "workers", 1);
+        report = parseInteger(parameters, "report", 0);
+        format = parameters.getOrDefault("format", "xlsx");
+        leafCapacity = parseInteger(parameters, "leaf", QuadTree.DEFAULT_LEAF_CAPACITY);
+        theta = parseDouble(parameters, "theta", QuadTree.DEFAULT_THETA);
+        sweep = parseDoubles(parameters, "sweep");
+        if(sweep != null)
+            checkSweep(parameters);
+        engine = parameters.getOrDefault("engine", "bh");
+        order = parseInteger(parameters, "order", null);
+        quadrupole = parseInteger(parameters, "quadrupole", 0);
+        traversal = parameters.getOrDefault("traversal", "body");
+        incremental = parseDouble(parameters, "incremental", 0.0);
+        balance = parameters.getOrDefault("balance", "costzones");
+        integrator = parameters.getOrDefault("integrator", "euler");
+        levels = parseInteger(parameters, "levels", 1);
+        checkpoint = parseInteger(parameters, "checkpoint", 0);
+        metrics = parameters.getOrDefault("metrics", "off");
+        stream = parseInteger(parameters, "stream", 0);
+        if(parameters.containsKey("resume"))
+            readCheckpoint(parameters);
 
         checkErrors();
     }
@@ -80,4 +317,20 @@ public class ArgsParser {
     public static int getStart () {return start;}
     public static int getNumWorkers () {return numWorkers;}
     public static boolean getReport() {return report == 1;}
+    public static String getFormat () {return format;}
+    public static int getLeafCapacity () {return leafCapacity;}
+    public static double getTheta () {return theta;}
+    public static double[] getSweep () {return sweep;}
+    public static String getEngine () {return engine;}
+    public static int getOrder () {return order != null ? order : MultipoleTree.DEFAULT_ORDER;}
+    public static boolean getQuadrupole () {return quadrupole == 1;}
+    public static String getTraversal () {return traversal;}
+    public static double getIncremental () {return incremental;}
+    public static String getBalance () {return balance;}
+    public static String getIntegrator () {return integrator;}
+    public static int getLevels () {return levels;}
+    public static int getCheckpoint () {return checkpoint;}
+    public static Checkpoint getResume () {return resume;}
+    public static String getMetrics () {return metrics;}
+    public static int getStream () {return stream;}
 }
@@ -0,0 +1,122 @@
+package utilities;
+
+import space.BodyState;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Simulation state saved by CheckpointWriter, from which a run is resumed with the same parameters.
+public class Checkpoint {
+
+    private final int numBodies, numSteps, DT, start, numWorkers, levels, completedSteps, numStateArrays;
+    private final double executionTime;
+    private final String integrator;
+
+    // Positioned at the arrays of the bodies.
+    private final ByteBuffer state;
+    private final Random[] workerRandoms;
+
+    private Checkpoint (ByteBuffer buffer) throws IOException {
+        if(buffer.getLong() != CheckpointWriter.MAGIC)
+            throw new IOException("Not a checkpoint file");
+        int version = buffer.getInt();
+        if(version != CheckpointWriter.VERSION)
+            throw new IOException("Unsupported checkpoint version " + version);
+
+        numBodies = buffer.getInt();
+        numSteps = buffer.getInt();
+        DT = buffer.getInt();
+        start = buffer.getInt();
+        numWorkers = buffer.getInt();
+        levels = buffer.getInt();
+        completedSteps = buffer.getInt();
+        numStateArrays = buffer.getInt();
+        executionTime = buffer.getDouble();
+        byte[] name = new byte[buffer.getInt()];
+        buffer.get(name);
+        integrator = new String(name, StandardCharsets.UTF_8);
+
+        state = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(buffer.position() + numBodies * (8 + 8 * (5 + numStateArrays)));
+
+        workerRandoms = new Random[numWorkers];
+        for(int worker = 0; worker < numWorkers; worker++) {
+            byte[] random = new byte[buffer.getInt()];
+            buffer.get(random);
+            workerRandoms[worker] = deserialize(random);
+        }
+    }
+
+    /**
+     * Reads a checkpoint file.
+     * @throws IOException If the file cannot be read or is not a complete checkpoint.
+     */
+    public static Checkpoint read (String path) throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(Path.of(path))).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (NoSuchFileException e) {
+            throw new IOException("File not found", e);
+        }
+
+        try {
+            return new Checkpoint(buffer);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt checkpoint file " + path, e);
+        }
+    }
+
+    // Only a Random is expected in the bytes of each generator.
+    private static Random deserialize (byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            in.setObjectInputFilter(ObjectInputFilter.Config.createFilter("java.util.Random;!*"));
+            return (Random) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Corrupt random generator in checkpoint", e);
+        }
+    }
+
+    /**
+     * Copies the saved bodies into the given store, in the same order they were saved.
+     * @param bodies Store of the same number of bodies and integrator state arrays.
+     */
+    public void restore (BodyState bodies) {
+        if(bodies.getNumBodies() != numBodies || bodies.integratorState.length != numStateArrays)
+            throw new IllegalArgumentException("Body store does not match the checkpoint");
+
+        ByteBuffer buffer = state.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        for(int[] property : new int[][] {bodies.id, bodies.interactions}) {
+            buffer.asIntBuffer().get(property);
+            buffer.position(buffer.position() + 4 * numBodies);
+        }
+        for(double[] property : new double[][] {bodies.x, bodies.y, bodies.vx, bodies.vy, bodies.mass})
+            getDoubles(buffer, property);
+        for(double[] property : bodies.integratorState)
+            getDoubles(buffer, property);
+    }
+
+    private static void getDoubles (ByteBuffer buffer, double[] property) {
+        buffer.asDoubleBuffer().get(property);
+        buffer.position(buffer.position() + 8 * property.length);
+    }
+
+    public int getNumBodies () {return numBodies;}
+    public int getNumSteps () {return numSteps;}
+    public int getDT () {return DT;}
+    public int getStart () {return start;}
+    public int getNumWorkers () {return numWorkers;}
+    public String getIntegrator () {return integrator;}
+    public int getLevels () {return levels;}
+    public int getCompletedSteps () {return completedSteps;}
+    public double getExecutionTime () {return executionTime;}
+    public Random getRandom (int worker) {return workerRandoms[worker];}
+}
@@ -0,0 +1,15 @@
+package utilities;
+
+// Parts of a step timed by PhaseRecorder. Workers go through the first four on every stage, and the
+// runner through the rest inside the barriers that close a stage and save a step, while the workers wait in STEP_WAIT.
+public enum Phase {
+    FORCES,             // Forces of the worker's chunks
+    FORCES_WAIT,        // Waiting for the other workers to finish their forces
+    MOVE,               // Moving the worker's range of bodies
+    STEP_WAIT,          // Waiting for the end of the stage, barrier action included for the last worker to arrive
+    ENGINE_UPDATE,      // Updating the tree and splitting the chunks of the next stage
+    REPORT,             // Queuing the state of the bodies for the trajectory file
+    CHECKPOINT;         // Copying the state of the simulation for the checkpoint
+
+    public String getLabel () {return name().toLowerCase();}
+}
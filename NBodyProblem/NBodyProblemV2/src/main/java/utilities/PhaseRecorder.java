@@ -0,0 +1,92 @@
+package utilities;
+
+import java.lang.management.ManagementFactory;
+
+/*
+ * Times the phases a single thread goes through, one after another: each lap records the time and the
+ * bytes allocated by the thread since the previous one. Every thread has its own recorder, so recording
+ * needs no synchronization; recorders are only read while their thread waits at a barrier, or once it ended.
+ * Laps go to the histograms of the current interval, which are added to the totals by roll().
+ */
+public class PhaseRecorder {
+
+    // Bytes allocated by the current thread, where the JVM can tell.
+    private static final com.sun.management.ThreadMXBean THREADS = allocationBean();
+
+    private final String name;
+    private final LatencyHistogram[] interval, total;
+    private final long[] intervalAllocated, totalAllocated;
+    private long lastTime, lastAllocated;
+
+    public PhaseRecorder (String name) {
+        this.name = name;
+        int numPhases = Phase.values().length;
+        this.interval = new LatencyHistogram[numPhases];
+        this.total = new LatencyHistogram[numPhases];
+        for(int phase = 0; phase < numPhases; phase++) {
+            interval[phase] = new LatencyHistogram();
+            total[phase] = new LatencyHistogram();
+        }
+        this.intervalAllocated = new long[numPhases];
+        this.totalAllocated = new long[numPhases];
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean () {
+        if(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+           && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled())
+            return bean;
+        return null;
+    }
+
+    private static long allocatedBytes () {
+        return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    public static boolean isAllocationSupported () {return THREADS != null;}
+
+    // Starts the next lap.
+    public void mark () {
+        lastTime = System.nanoTime();
+        lastAllocated = allocatedBytes();
+    }
+
+    /**
+     * Records the lap that ends now in the given phase, and starts the next one.
+     * @return Duration of the lap in ns.
+     */
+    public long lap (Phase phase) {
+        long time = System.nanoTime(), allocated = allocatedBytes();
+        long duration = time - lastTime;
+        interval[phase.ordinal()].record(duration);
+        intervalAllocated[phase.ordinal()] += allocated - lastAllocated;
+        lastTime = time;
+        lastAllocated = allocated;
+        return duration;
+    }
+
+    // Adds the laps of the current interval to the totals, and starts a new interval.
+    public void roll () {
+        for(int phase = 0; phase < interval.length; phase++) {
+            total[phase].add(interval[phase]);
+            interval[phase].reset();
+            totalAllocated[phase] += intervalAllocated[phase];
+            intervalAllocated[phase] = 0;
+        }
+    }
+
+    // Adds the laps of another recorder to this one, to merge the recorders of several threads.
+    public void add (PhaseRecorder other) {
+        for(int phase = 0; phase < interval.length; phase++) {
+            interval[phase].add(other.interval[phase]);
+            total[phase].add(other.total[phase]);
+            intervalAllocated[phase] += other.intervalAllocated[phase];
+            totalAllocated[phase] += other.totalAllocated[phase];
+        }
+    }
+
+    public String getName () {return name;}
+    public LatencyHistogram getInterval (Phase phase) {return interval[phase.ordinal()];}
+    public LatencyHistogram getTotal (Phase phase) {return total[phase.ordinal()];}
+    public long getIntervalAllocated (Phase phase) {return intervalAllocated[phase.ordinal()];}
+    public long getTotalAllocated (Phase phase) {return totalAllocated[phase.ordinal()];}
+}
@@ -0,0 +1,146 @@
+package utilities;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/*
+ * Random access to a trajectory file written by TrajectoryWriter, without loading it. The file is
+ * memory-mapped in segments of whole steps (a single mapping cannot exceed 2 GB), and an index keeps
+ * the segment and position of each step. Columns, steps and body histories are returned as views over
+ * the mapping, so reading them copies nothing until the values are used.
+ * The header only gets its number of steps when the writer is closed. A file whose run died before
+ * that has 0 steps in its header, and its steps are counted from its size instead, leaving out a last
+ * step that was only partly written.
+ */
+public class TrajectoryReader implements AutoCloseable {
+
+    // Columns of each step.
+    public static final int X = 0, Y = 1, VX = 2, VY = 3, FX = 4, FY = 5;
+
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private final FileChannel channel;
+    private final int numBodies, numSteps, stepsEnd, DT, start, numWorkers;
+    private final double executionTime;
+    private final DoubleBuffer masses;
+
+    // Mapped segments, and the segment and position in it of every step.
+    private final MappedByteBuffer[] segments;
+    private final int[] stepSegment, stepPosition;
+
+    public TrajectoryReader (String path) throws IOException {
+        this.channel = FileChannel.open(Path.of(path));
+
+        ByteBuffer header = ByteBuffer.allocate(TrajectoryWriter.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while(header.hasRemaining())
+            if(channel.read(header, header.position()) < 0)
+                throw new IOException(path + " is not a trajectory file");
+        header.flip();
+        if(header.getLong() != TrajectoryWriter.MAGIC || header.getInt() != TrajectoryWriter.VERSION)
+            throw new IOException(path + " is not a trajectory file");
+        this.numBodies = header.getInt();
+        int reportedSteps = header.getInt();
+        this.stepsEnd = header.getInt();
+        this.DT = header.getInt();
+        this.start = header.getInt();
+        this.numWorkers = header.getInt();
+        header.getInt();
+        this.executionTime = header.getDouble();
+
+        long stepSize = TrajectoryWriter.stepSize(numBodies);
+        if(stepSize > MAX_SEGMENT_SIZE)
+            throw new IOException("Steps of " + numBodies + " bodies are too big to be mapped");
+        long stepsOnDisk = (channel.size() - TrajectoryWriter.stepOffset(numBodies, 0)) / Math.max(1, stepSize);
+        if(stepsOnDisk < 0)
+            throw new IOException(path + " is truncated");
+        this.numSteps = reportedSteps > 0 ? reportedSteps : (int) Math.min(stepsOnDisk, Integer.MAX_VALUE);
+        if(stepsOnDisk < numSteps)
+            throw new IOException(path + " is truncated");
+
+        this.masses = channel.map(FileChannel.MapMode.READ_ONLY, TrajectoryWriter.HEADER_SIZE, 8L * numBodies)
+                             .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+
+        // Index of the steps, mapping as many whole steps per segment as fit.
+        int stepsPerSegment = (int) Math.max(1, MAX_SEGMENT_SIZE / Math.max(1, stepSize));
+        this.segments = new MappedByteBuffer[(numSteps + stepsPerSegment - 1) / stepsPerSegment];
+        this.stepSegment = new int[numSteps];
+        this.stepPosition = new int[numSteps];
+        for(int segment = 0; segment < segments.length; segment++) {
+            int firstStep = segment * stepsPerSegment;
+            int segmentSteps = Math.min(stepsPerSegment, numSteps - firstStep);
+            segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY, TrajectoryWriter.stepOffset(numBodies, firstStep),
+                                            segmentSteps * stepSize);
+            segments[segment].order(ByteOrder.LITTLE_ENDIAN);
+            for(int step = firstStep; step < firstStep + segmentSteps; step++) {
+                stepSegment[step] = segment;
+                stepPosition[step] = (int) ((step - firstStep) * stepSize);
+            }
+        }
+    }
+
+    // Every column of a step one after another: the value of field for body is at field * numBodies + body.
+    public DoubleBuffer getStep (int step) {
+        return view(stepSegment[step], stepPosition[step], TrajectoryWriter.FIELDS * numBodies);
+    }
+
+    // One column of a step, indexed by body.
+    public DoubleBuffer getColumn (int step, int field) {
+        return view(stepSegment[step], stepPosition[step] + 8 * field * numBodies, numBodies);
+    }
+
+    public double get (int step, int field, int body) {
+        return segments[stepSegment[step]].getDouble(stepPosition[step] + 8 * (field * numBodies + body));
+    }
+
+    // The values of a body along the whole run.
+    public History getHistory (int body) {
+        return new History(body);
+    }
+
+    private DoubleBuffer view (int segment, int position, int length) {
+        return segments[segment].slice(position, 8 * length).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    // View of one body over every step.
+    public class History {
+        private final int body;
+
+        private History (int body) {
+            this.body = body;
+        }
+
+        public double get (int step, int field) {return TrajectoryReader.this.get(step, field, body);}
+        public double getMass () {return masses.get(body);}
+        public int getNumSteps () {return numSteps;}
+    }
+
+    // Writes every step into the sink, and closes it with the execution time of the run.
+    public void replay (StepSink sink) throws IOException {
+        try {
+            for(int step = 0; step < numSteps; step++)
+                sink.writeStep(getStep(step));
+        } finally {
+            sink.close(executionTime);
+        }
+    }
+
+    public int getNumBodies () {return numBodies;}
+    public int getNumSteps () {return numSteps;}
+    public int getStepsEnd () {return stepsEnd;}
+    public int getDT () {return DT;}
+    public int getStart () {return start;}
+    public int getNumWorkers () {return numWorkers;}
+    public double getExecutionTime () {return executionTime;}
+    public DoubleBuffer getMasses () {return masses.duplicate();}
+
+    // The mappings stay valid after closing the file.
+    @Override
+    public void close () throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,231 @@
+package utilities;
+
+import space.BodyState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Streams the state of every body at each reported step to a binary file, instead of keeping the whole
+ * run in memory. The file is little-endian and starts with a header:
+ *   magic (8 bytes), version, numBodies, reported steps, steps end, DT, start, numWorkers (ints),
+ *   execution time in ns (double), and the mass of each body (numBodies doubles).
+ * Then each step takes the same number of bytes, with the columns x, y, vx, vy, fx, fy of numBodies
+ * doubles each, indexed by the original index of the bodies. The velocities are synchronized with the
+ * positions, and the forces are those on them.
+ * A step is copied into one of two direct buffers, and a dedicated thread writes it to the channel
+ * while the simulation goes on with the other, so memory stays proportional to the number of bodies.
+ * Other outputs can be attached as sinks, which that thread feeds with each step after writing it.
+ * A resumed run reopens the file of the run it resumes, and appends its steps after the checkpoint.
+ */
+public class TrajectoryWriter {
+
+    public static final String FILE_PATH = "results/trajectory2.bin";
+
+    public static final long MAGIC = 0x4A525459444F424EL;     // "NBODYTRJ" in little-endian bytes
+    public static final int VERSION = 1;
+    public static final int FIELDS = 6;
+    public static final int HEADER_SIZE = 48;
+    static final int STEPS_OFFSET = 16, EXECUTION_TIME_OFFSET = 40;
+
+    private final int numBodies;
+    private final FileChannel channel;
+    private int numStepsWritten;
+    private boolean started;
+
+    // Buffers ready to be filled, and buffers waiting to be written. END closes the writing thread.
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(2);
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(3);
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private final Thread writingThread;
+    private volatile IOException failure;
+    private final List<StepSink> sinks = new ArrayList<>();
+
+    public TrajectoryWriter (String path, int numBodies, int numSteps, int DT, int start, int numWorkers,
+                             double[] masses) throws IOException {
+        this(create(path, numBodies, numSteps, DT, start, numWorkers, masses), numBodies, 0);
+    }
+
+    // Creates the file with its header, with 0 reported steps until it is closed.
+    private static FileChannel create (String path, int numBodies, int numSteps, int DT, int start, int numWorkers,
+                                       double[] masses) throws IOException {
+        Path file = Path.of(path);
+        if(file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 8 * numBodies).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(MAGIC).putInt(VERSION).putInt(numBodies).putInt(0).putInt(numSteps)
+              .putInt(DT).putInt(start).putInt(numWorkers).putInt(0).putDouble(0);
+        for(double mass : masses)
+            header.putDouble(mass);
+        header.flip();
+        try {
+            while(header.hasRemaining())
+                channel.write(header);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Reopens the trajectory file of a run to go on after the given number of steps, dropping the
+     * steps it holds after them. Its header reports 0 steps again until the writer is closed.
+     * @throws IOException If the file is not a trajectory of the same run holding that many steps.
+     */
+    public static TrajectoryWriter reopen (String path, int numBodies, int numSteps, int DT, int start,
+                                           int completedSteps) throws IOException {
+        FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while(header.hasRemaining())
+                if(channel.read(header, header.position()) < 0)
+                    throw new IOException("not a trajectory file");
+            header.flip();
+            if(header.getLong() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("not a trajectory file");
+            int fileBodies = header.getInt();
+            header.getInt();
+            if(fileBodies != numBodies || header.getInt() != numSteps || header.getInt() != DT || header.getInt() != start)
+                throw new IOException("trajectory of a different run");
+
+            long end = stepOffset(numBodies, completedSteps);
+            if(channel.size() < end)
+                throw new IOException("only " + (channel.size() - stepOffset(numBodies, 0)) / stepSize(numBodies) + " steps were written");
+            channel.truncate(end);
+            channel.position(end);
+
+            ByteBuffer steps = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0).flip();
+            while(steps.hasRemaining())
+                channel.write(steps, STEPS_OFFSET + steps.position());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new TrajectoryWriter(channel, numBodies, completedSteps);
+    }
+
+    private TrajectoryWriter (FileChannel channel, int numBodies, int numStepsWritten) {
+        this.channel = channel;
+        this.numBodies = numBodies;
+        this.numStepsWritten = numStepsWritten;
+
+        for(int i = 0; i < 2; i++)
+            free.add(ByteBuffer.allocateDirect(stepSize(numBodies)).order(ByteOrder.LITTLE_ENDIAN));
+
+        // Daemon, so that a run that stops reporting after an error can still exit.
+        this.writingThread = new Thread(this::writeSteps, "Trajectory-writer");
+        writingThread.setDaemon(true);
+        writingThread.start();
+    }
+
+    // Must be called before the first step is written.
+    public void addSink (StepSink sink) {
+        if(started)
+            throw new IllegalStateException("Sinks must be added before the first step");
+        sinks.add(sink);
+    }
+
+    // Bytes of a step.
+    public static int stepSize (int numBodies) {return FIELDS * 8 * numBodies;}
+
+    // Position in the file of the given step.
+    public static long stepOffset (int numBodies, int step) {
+        return HEADER_SIZE + 8L * numBodies + (long) step * stepSize(numBodies);
+    }
+
+    private void writeFully (ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    // Body of the writing thread. After a failure, buffers are still given back so that the simulation never blocks.
+    // Unchecked exceptions of the sinks (e.g. a sheet that ran out of rows) are failures too, not the end of the thread.
+    private void writeSteps () {
+        try {
+            for(ByteBuffer buffer = full.take(); buffer != END; buffer = full.take()) {
+                try {
+                    if(failure == null) {
+                        DoubleBuffer step = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                        writeFully(buffer);
+                        for(StepSink sink : sinks)
+                            sink.writeStep(step.asReadOnlyBuffer());
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = new IOException("Cannot write step: " + e, e);
+                }
+                buffer.clear();
+                free.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            failure = new IOException("Trajectory writer interrupted", e);
+        }
+    }
+
+    /**
+     * Queues the current state of every body as the next step. Only waits if both buffers are still being written.
+     * @param bodies Body store, read by the original index of each body.
+     */
+    public void writeStep (BodyState bodies) throws IOException, InterruptedException {
+        if(failure != null)
+            throw failure;
+
+        ByteBuffer buffer = free.take();
+        DoubleBuffer columns = buffer.asDoubleBuffer();
+        double[][] fields = {bodies.x, bodies.y, bodies.vx, bodies.vy, bodies.fx, bodies.fy};
+        for(int field = 0; field < FIELDS; field++) {
+            double[] values = fields[field];
+            int column = field * numBodies;
+            for(int body = 0; body < numBodies; body++)
+                columns.put(column + bodies.id[body], values[body]);
+        }
+
+        full.put(buffer);
+        numStepsWritten++;
+        started = true;
+    }
+
+    /**
+     * Waits for the queued steps to be written, completes the header and closes the sinks.
+     * @param executionTime Execution time of the simulation, in ns.
+     */
+    public void close (double executionTime) throws IOException, InterruptedException {
+        full.put(END);
+        writingThread.join();
+        if(failure != null) {
+            channel.close();
+            for(StepSink sink : sinks)
+                sink.close(executionTime);
+            throw failure;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(numStepsWritten).flip();
+        while(header.hasRemaining())
+            channel.write(header, STEPS_OFFSET + header.position());
+
+        header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putDouble(executionTime).flip();
+        while(header.hasRemaining())
+            channel.write(header, EXECUTION_TIME_OFFSET + header.position());
+
+        channel.close();
+        for(StepSink sink : sinks)
+            sink.close(executionTime);
+    }
+}